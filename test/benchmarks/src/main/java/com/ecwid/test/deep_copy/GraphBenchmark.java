@@ -0,0 +1,102 @@
+package com.ecwid.test.deep_copy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic graphs of {@link #size} objects:
+ * <ul>
+ *     <li>chain - linked list of nodes, as deep as it is big</li>
+ *     <li>wide - one array of distinct nodes</li>
+ *     <li>dag - every node refers to two nodes of the previous layer, so most nodes are shared</li>
+ *     <li>cycle - chain which ends with the reference to its head, every node also refers to the head</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-opens=java.base/java.lang=ALL-UNNAMED",
+        "--add-opens=java.base/java.util=ALL-UNNAMED",
+        "--add-opens=java.base/java.util.concurrent.atomic=ALL-UNNAMED"})
+@State(Scope.Benchmark)
+public class GraphBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    @Param({"chain", "wide", "dag", "cycle"})
+    public String shape;
+
+    private Object graph;
+
+    public static class Node {
+        int value;
+        String label;
+        Node next;
+        Node[] children;
+
+        Node(int value) {
+            this.value = value;
+            this.label = "node";
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        graph = switch (shape) {
+            case "chain" -> chain(size, false);
+            case "wide" -> wide(size);
+            case "dag" -> dag(size);
+            case "cycle" -> chain(size, true);
+            default -> throw new IllegalArgumentException("Unknown shape " + shape);
+        };
+    }
+
+    @Benchmark
+    public Object deepCopy() {
+        return CopyUtils.deepCopy(graph);
+    }
+
+    private static Node chain(int size, boolean cyclic) {
+        Node head = new Node(0);
+        Node tail = head;
+        for (int k = 1; k < size; k++) {
+            Node node = new Node(k);
+            if (cyclic)
+                node.children = new Node[]{head};
+            tail.next = node;
+            tail = node;
+        }
+        if (cyclic)
+            tail.next = head;
+        return head;
+    }
+
+    private static Node[] wide(int size) {
+        Node[] nodes = new Node[size];
+        for (int k = 0; k < size; k++)
+            nodes[k] = new Node(k);
+        return nodes;
+    }
+
+    private static Node dag(int size) {
+        int width = Math.max(2, (int) Math.sqrt(size));
+        Node[] layer = wide(width);
+        int count = width;
+        while (count + width <= size) {
+            Node[] next = new Node[width];
+            for (int k = 0; k < width; k++) {
+                next[k] = new Node(count + k);
+                next[k].children = new Node[]{layer[k], layer[(k + 1) % width]};
+            }
+            layer = next;
+            count += width;
+        }
+        Node root = new Node(-1);
+        root.children = layer;
+        return root;
+    }
+}
@@ -0,0 +1,115 @@
+package com.ecwid.test.deep_copy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scenarios of {@link Main} and {@link Test}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-opens=java.base/java.lang=ALL-UNNAMED",
+        "--add-opens=java.base/java.util=ALL-UNNAMED",
+        "--add-opens=java.base/java.util.concurrent.atomic=ALL-UNNAMED",
+        "--add-opens=java.base/java.util.concurrent=ALL-UNNAMED",
+        "--add-opens=java.base/java.util.concurrent.locks=ALL-UNNAMED"})
+@State(Scope.Benchmark)
+public class ScenarioBenchmark {
+
+    private Man man;
+    private B b;
+    private HashSet<AtomicReference<Double>> atomicReferences;
+    private LinkedList<Integer> linkedList;
+    private ConcurrentHashMap<String, B> concurrentHashMap;
+    private ConcurrentSkipListMap<String, B> concurrentSkipListMap;
+    private ArrayList<Man> people;
+    private CopySession<ArrayList<Man>> session;
+    private int changed;
+
+    @Setup
+    public void setUp() {
+        ArrayList<String> books = new ArrayList<>();
+        books.add("Dodge in Hell");
+        books.add("The Rise and Fall of D.O.D.O");
+        man = new Man("Tommy", 43, books);
+        b = new B(1, 11);
+        atomicReferences = new HashSet<>();
+        atomicReferences.add(new AtomicReference<>(100.1));
+        atomicReferences.add(new AtomicReference<>(200.1));
+        atomicReferences.add(new AtomicReference<>(300.1));
+        linkedList = new LinkedList<>();
+        for (int k = 0; k < 10_000; k++)
+            linkedList.add(k);
+        concurrentHashMap = new ConcurrentHashMap<>();
+        concurrentSkipListMap = new ConcurrentSkipListMap<>();
+        for (int k = 0; k < 100; k++) {
+            concurrentHashMap.put("key" + k, new B(k, k * 100));
+            concurrentSkipListMap.put("key" + k, new B(k, k * 100));
+        }
+        people = new ArrayList<>();
+        for (int k = 0; k < 1_000; k++)
+            people.add(new Man("Man" + k, k % 100, new ArrayList<>(books)));
+        session = new CopySession<>(people);
+    }
+
+    @Benchmark
+    public Man man() {
+        return CopyUtils.deepCopy(man);
+    }
+
+    @Benchmark
+    public B inherited() {
+        return CopyUtils.deepCopy(b);
+    }
+
+    @Benchmark
+    public HashSet<AtomicReference<Double>> hashSetOfAtomicReferences() {
+        return CopyUtils.deepCopy(atomicReferences);
+    }
+
+    @Benchmark
+    public LinkedList<Integer> linkedList10k() {
+        return CopyUtils.deepCopy(linkedList);
+    }
+
+    @Benchmark
+    public ConcurrentHashMap<String, B> concurrentHashMap() {
+        return CopyUtils.deepCopy(concurrentHashMap);
+    }
+
+    @Benchmark
+    public ConcurrentSkipListMap<String, B> concurrentSkipListMap() {
+        return CopyUtils.deepCopy(concurrentSkipListMap);
+    }
+
+    /**
+     * One of 1000 people changes between refreshes of the session.
+     */
+    @Benchmark
+    public ArrayList<Man> sessionRefresh() {
+        touch();
+        return session.refresh();
+    }
+
+    /**
+     * Same change as {@link #sessionRefresh()}, followed by a fresh copy.
+     */
+    @Benchmark
+    public ArrayList<Man> freshCopy() {
+        touch();
+        return CopyUtils.deepCopy(people);
+    }
+
+    private void touch() {
+        Man man = people.get(changed++ % people.size());
+        man.setAge(man.getAge() + 1);
+    }
+}
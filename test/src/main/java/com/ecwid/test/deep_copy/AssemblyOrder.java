@@ -0,0 +1,77 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Arrays;
+
+/**
+ * Order in which an indexed graph is assembled by {@link Stamper} and {@link SnapshotReader}: instances are
+ * allocated up front, then each node is completed (filled, or created for records) after the nodes first reached
+ * through it, like {@link CopyEngine} completes a record only after its components. Nodes are visited depth first
+ * from the root, references in reverse order like the engine pops them from its stack.
+ * <p>
+ * A reference back to a node on the path can't wait for that node. An object or an array can be filled
+ * without such record and filled again when all records exist (see {@link #late(int[], int[][], boolean[])}),
+ * a record or a collection can't.
+ */
+final class AssemblyOrder {
+
+    private AssemblyOrder() {
+    }
+
+    /**
+     * @param refs references of each node to other nodes, negative for values which are not nodes
+     * @return all nodes, each one after the nodes first reached through it
+     */
+    static int[] of(int[][] refs) {
+        int[] order = new int[refs.length];
+        int size = 0;
+        boolean[] visited = new boolean[refs.length];
+        int[] stack = new int[refs.length];
+        int[] positions = new int[refs.length];
+        for (int k = 0; k < refs.length; k++) {
+            if (visited[k])
+                continue;
+            visited[k] = true;
+            stack[0] = k;
+            positions[0] = refs[k].length;
+            int depth = 1;
+            while (depth > 0) {
+                int i = stack[depth - 1];
+                if (positions[depth - 1] > 0) {
+                    int ref = refs[i][--positions[depth - 1]];
+                    if (ref >= 0 && !visited[ref]) {
+                        visited[ref] = true;
+                        stack[depth] = ref;
+                        positions[depth] = refs[ref].length;
+                        depth++;
+                    }
+                } else {
+                    order[size++] = stack[--depth];
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @param order order returned by {@link #of(int[][])}
+     * @param refs references of each node
+     * @param records {@code true} for nodes which are records
+     * @return nodes which refer to a record completed after them, in the order
+     */
+    static int[] late(int[] order, int[][] refs, boolean[] records) {
+        int[] positions = new int[order.length];
+        for (int p = 0; p < order.length; p++)
+            positions[order[p]] = p;
+        int[] late = new int[order.length];
+        int count = 0;
+        for (int p = 0; p < order.length; p++) {
+            for (int ref : refs[order[p]]) {
+                if (ref >= 0 && records[ref] && positions[ref] > p) {
+                    late[count++] = order[p];
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(late, count);
+    }
+}
@@ -0,0 +1,748 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntFunction;
+
+/**
+ * Structure-aware copiers of common JDK collections. Collections are rebuilt through their public API,
+ * so their internals are never accessed reflectively (no {@code --add-opens} needed) and internal state
+ * like {@code modCount} is not copied.
+ * <p>
+ * Copy is made in steps driven by {@link CopyEngine}:
+ * <ol>
+ *     <li>{@link #elements(Object)} takes a snapshot of elements (keys and values interleaved for maps)</li>
+ *     <li>{@link #newInstance(Object, int)} creates an empty presized collection, it is registered as the copy
+ *     right away, so cycles through the collection are resolved</li>
+ *     <li>engine replaces elements of the snapshot with their copies</li>
+ *     <li>{@link #fill(Object, Object[])} puts copied elements into the collection</li>
+ * </ol>
+ * Hash based collections need final hash codes of their keys when elements are added, while copies of
+ * elements may still be incomplete. So hash based copiers are used only if every key is immutable or
+ * has identity hash code, otherwise the collection is copied reflectively like any other object.
+ * Sorted collections keep the comparator of the original, it is shared and not copied.
+ * <p>
+ * Properties without public getters are read from the fields of the original when {@code java.util} is open
+ * to this module, like reflective copy requires: {@link HashMap} and {@link HashSet} get the load factor
+ * of the original, {@link Arrays#asList(Object[])} is backed by an array of the original component type.
+ * Otherwise copies get the default load factor and an {@code Object[]}. Such collections are saved
+ * into snapshots only with the default load factor and {@code Object[]}.
+ * <p>
+ * Concurrent collections are read through their weakly consistent iterators, so a collection modified by other
+ * threads during the copy is copied as a well-formed collection: each element is either present or not, elements
+ * added or removed concurrently may be missed. Writers are never blocked. Their internal nodes are read
+ * reflectively only when their keys don't meet the requirements above. {@link #snapshot(Object)} drops these
+ * requirements for concurrent collections, see {@link CopyOptions.Builder#concurrentSnapshots()}.
+ */
+abstract class CollectionCopier {
+
+    private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    private static final Class<?> FIXED_SIZE_LIST = Arrays.asList().getClass();
+
+    /**
+     * {@code HashMap.loadFactor}, {@code HashSet.map} and the array of {@link Arrays#asList(Object[])},
+     * {@code null} if {@code java.util} is not open to this module.
+     */
+    private static final VarHandle LOAD_FACTOR = internal(HashMap.class, "loadFactor", float.class);
+    private static final VarHandle SET_MAP = internal(HashSet.class, "map", HashMap.class);
+    private static final VarHandle LIST_ARRAY = internal(FIXED_SIZE_LIST, "a", Object[].class);
+
+    private static final Map<Class<?>, CollectionCopier> COPIERS = Map.ofEntries(
+            Map.entry(ArrayList.class, new ListCopier(ArrayList::new)),
+            Map.entry(LinkedList.class, new ListCopier(n -> new LinkedList<>())),
+            Map.entry(ArrayDeque.class, new ListCopier(ArrayDeque::new)),
+            Map.entry(FIXED_SIZE_LIST, new FixedSizeListCopier()),
+            Map.entry(HashSet.class, new HashSetCopier((n, f) -> new HashSet<>(hashCapacity(n, f), f))),
+            Map.entry(LinkedHashSet.class, new HashSetCopier((n, f) -> new LinkedHashSet<>(hashCapacity(n, f), f))),
+            Map.entry(HashMap.class, new HashMapCopier((n, f) -> new HashMap<>(hashCapacity(n, f), f), false)),
+            Map.entry(ConcurrentHashMap.class, new HashMapCopier((n, f) -> new ConcurrentHashMap<>(n), true)),
+            Map.entry(ConcurrentLinkedQueue.class, new ListCopier(n -> new ConcurrentLinkedQueue<>())),
+            Map.entry(ConcurrentLinkedDeque.class, new ListCopier(n -> new ConcurrentLinkedDeque<>())),
+            Map.entry(CopyOnWriteArrayList.class, new ListCopier(n -> new CopyOnWriteArrayList<>())),
+            Map.entry(ConcurrentSkipListSet.class, new SkipListSetCopier()),
+            Map.entry(TreeSet.class, new TreeSetCopier()),
+            Map.entry(TreeMap.class, new TreeMapCopier()),
+            Map.entry(ConcurrentSkipListMap.class, new SkipListMapCopier()));
+
+    private static final ClassValue<Boolean> IDENTITY_HASH = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("hashCode").getDeclaringClass() == Object.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * @param type class of the object to copy
+     * @return copier for exactly this class, {@code null} if there is none
+     */
+    static CollectionCopier of(Class<?> type) {
+        return COPIERS.get(type);
+    }
+
+    /**
+     * @param original collection to copy
+     * @return snapshot of elements, {@code null} if the collection can't be copied by this copier
+     */
+    abstract Object[] elements(Object original);
+
+    /**
+     * Snapshot of elements of a concurrent collection even if they don't meet the requirements of
+     * {@link #elements(Object)}: hash codes of keys may change and sorted elements may be mutable. Such elements
+     * are added to the copy when their copies are complete, so only elements reachable from themselves through
+     * the collection may be added before they are complete. Other collections return {@link #elements(Object)}.
+     * @param original collection to copy
+     * @return snapshot of elements, {@code null} if the collection can't be copied by this copier
+     */
+    Object[] snapshot(Object original) {
+        return elements(original);
+    }
+
+    /**
+     * Elements of a collection saved into a snapshot, see {@link SnapshotStore}. Restored collection is filled when
+     * its elements are complete, so keys of hash based and elements of skip list collections don't need to meet
+     * the requirements of {@link #elements(Object)}.
+     * @param original collection to save
+     * @return elements, {@code null} if the collection can't be saved by this copier
+     */
+    Object[] portableElements(Object original) {
+        return elements(original);
+    }
+
+    /**
+     * @param element element of the collection, key or value of a map
+     * @param index index of the element among elements, keys of maps have even indices
+     * @return {@code true} if {@link #fill(Object, Object[])} reads the element (its hash code or order),
+     * so it has to be complete
+     */
+    boolean readsElement(Object element, int index) {
+        return false;
+    }
+
+    /**
+     * @param original collection to copy
+     * @param length number of elements returned by {@link #elements(Object)}
+     * @return empty collection of the same class, presized for the elements
+     */
+    abstract Object newInstance(Object original, int length);
+
+    /**
+     * @param copy collection created by {@link #newInstance(Object, int)}
+     * @param elements copied elements
+     */
+    abstract void fill(Object copy, Object[] elements);
+
+    /**
+     * @param original collection to copy
+     * @param copy existing collection of the same class
+     * @param length number of elements returned by {@link #elements(Object)}
+     * @return {@code false} if {@code copy} can't be refilled with copies of {@code original} elements,
+     * for example it has different comparator
+     */
+    boolean canReuse(Object original, Object copy, int length) {
+        return true;
+    }
+
+    /**
+     * @param original collection to save into a snapshot
+     * @return {@code true} if the collection can be rebuilt from its elements only: {@link #newInstance(Object, int)}
+     * accepts {@code null} instead of the original, see {@link SnapshotStore}
+     */
+    boolean isPortable(Object original) {
+        return true;
+    }
+
+    /**
+     * Replaces content of reused collection. Nothing is changed if it already has the same elements in the same order.
+     * @param copy collection accepted by {@link #canReuse(Object, Object, int)}
+     * @param elements copied elements
+     */
+    void refill(Object copy, Object[] elements) {
+        Object[] current = elements(copy);
+        if (current != null && current.length == elements.length) {
+            int k = 0;
+            while (k < elements.length && current[k] == elements[k])
+                k++;
+            if (k == elements.length)
+                return;
+        }
+        clear(copy);
+        fill(copy, elements);
+    }
+
+    void clear(Object copy) {
+        ((Collection<?>) copy).clear();
+    }
+
+    private static int hashCapacity(int size, float loadFactor) {
+        return (int) (size / loadFactor) + 1;
+    }
+
+    private static VarHandle internal(Class<?> type, String name, Class<?> fieldType) {
+        try {
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup()).findVarHandle(type, name, fieldType);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param original {@link HashMap} or {@link HashSet}, {@code null} when it is restored from a snapshot
+     * @return load factor of the original, the default one if it is unknown
+     */
+    private static float loadFactor(Object original) {
+        if (original == null || LOAD_FACTOR == null || SET_MAP == null)
+            return DEFAULT_LOAD_FACTOR;
+        Object map = original instanceof HashSet<?> ? SET_MAP.get(original) : original;
+        return (float) LOAD_FACTOR.get(map);
+    }
+
+    /**
+     * @param list {@link Arrays#asList(Object[])}, {@code null} when it is restored from a snapshot
+     * @return component type of the array backing the list, {@code Object} if it is unknown
+     */
+    private static Class<?> componentType(Object list) {
+        if (list == null || LIST_ARRAY == null)
+            return Object.class;
+        return ((Object[]) LIST_ARRAY.get(list)).getClass().componentType();
+    }
+
+    /**
+     * @param key key of hash based collection
+     * @return if hash code of the key copy is known before the copy is complete
+     */
+    private static boolean isHashStable(Object key) {
+        if (key == null)
+            return true;
+        Class<?> type = key.getClass();
+        return ImmutableTypes.isImmutable(type) || IDENTITY_HASH.get(type);
+    }
+
+    /**
+     * @param original sorted map or set, {@code null} when it is restored from a snapshot
+     * @return comparator of the original, {@code null} for natural order
+     */
+    private static Comparator<?> comparator(Object original) {
+        if (original instanceof SortedMap<?, ?> map)
+            return map.comparator();
+        if (original instanceof SortedSet<?> set)
+            return set.comparator();
+        return null;
+    }
+
+    private static Object[] mapElements(Map<?, ?> map, boolean requireStableKeys) {
+        Object[] elements = new Object[map.size() * 2];
+        int k = 0;
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            Object key = e.getKey();
+            if (requireStableKeys && !isHashStable(key))
+                return null;
+            if (k == elements.length)
+                elements = Arrays.copyOf(elements, k * 2 + 2); // map has grown since size() call
+            elements[k++] = key;
+            elements[k++] = e.getValue();
+        }
+        return k == elements.length ? elements : Arrays.copyOf(elements, k);
+    }
+
+    /**
+     * Creates an empty hash based collection.
+     */
+    private interface HashFactory<T> {
+
+        /**
+         * @param size number of elements
+         * @param loadFactor load factor of the original
+         * @return empty collection
+         */
+        T create(int size, float loadFactor);
+    }
+
+    private static final class ListCopier extends CollectionCopier {
+
+        private final IntFunction<Collection<Object>> factory;
+
+        ListCopier(IntFunction<Collection<Object>> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        Object[] elements(Object original) {
+            return ((Collection<?>) original).toArray();
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return factory.apply(length);
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") Collection<Object> c = (Collection<Object>) copy;
+            c.addAll(Arrays.asList(elements));
+        }
+    }
+
+    /**
+     * {@link Arrays#asList(Object[])}: backed by the array of copied elements.
+     */
+    private static final class FixedSizeListCopier extends CollectionCopier {
+
+        @Override
+        Object[] elements(Object original) {
+            return ((List<?>) original).toArray();
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return Arrays.asList((Object[]) Array.newInstance(componentType(original), length));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return componentType(original) == Object.class;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return ((List<?>) copy).size() == length && componentType(original) == componentType(copy);
+        }
+
+        @Override
+        void clear(Object copy) {
+            // every element is set by fill
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") List<Object> list = (List<Object>) copy;
+            for (int k = 0; k < elements.length; k++)
+                list.set(k, elements[k]);
+        }
+    }
+
+    private static final class HashSetCopier extends CollectionCopier {
+
+        private final HashFactory<Set<Object>> factory;
+
+        HashSetCopier(HashFactory<Set<Object>> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        Object[] elements(Object original) {
+            Object[] elements = ((Set<?>) original).toArray();
+            for (Object e : elements) {
+                if (!isHashStable(e))
+                    return null;
+            }
+            return elements;
+        }
+
+        @Override
+        Object[] portableElements(Object original) {
+            return ((Set<?>) original).toArray();
+        }
+
+        @Override
+        boolean readsElement(Object element, int index) {
+            return !isHashStable(element);
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return factory.create(length, loadFactor(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return loadFactor(original) == DEFAULT_LOAD_FACTOR;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return loadFactor(original) == loadFactor(copy);
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") Set<Object> set = (Set<Object>) copy;
+            set.addAll(Arrays.asList(elements));
+        }
+    }
+
+    private static class HashMapCopier extends CollectionCopier {
+
+        private final HashFactory<Map<Object, Object>> factory;
+        private final boolean concurrent;
+
+        HashMapCopier(HashFactory<Map<Object, Object>> factory, boolean concurrent) {
+            this.factory = factory;
+            this.concurrent = concurrent;
+        }
+
+        @Override
+        Object[] elements(Object original) {
+            return mapElements((Map<?, ?>) original, true);
+        }
+
+        @Override
+        Object[] snapshot(Object original) {
+            return concurrent ? mapElements((Map<?, ?>) original, false) : elements(original);
+        }
+
+        @Override
+        Object[] portableElements(Object original) {
+            return mapElements((Map<?, ?>) original, false);
+        }
+
+        @Override
+        boolean readsElement(Object element, int index) {
+            return index % 2 == 0 && !isHashStable(element);
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return factory.create(length / 2, concurrent ? DEFAULT_LOAD_FACTOR : loadFactor(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return concurrent || loadFactor(original) == DEFAULT_LOAD_FACTOR;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return concurrent || loadFactor(original) == loadFactor(copy);
+        }
+
+        @Override
+        void clear(Object copy) {
+            ((Map<?, ?>) copy).clear();
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") Map<Object, Object> map = (Map<Object, Object>) copy;
+            for (int k = 0; k < elements.length; k += 2)
+                map.put(elements[k], elements[k + 1]);
+        }
+    }
+
+    /**
+     * Uses {@link ConcurrentSkipListMap#ConcurrentSkipListMap(Comparator)} and puts elements one by one,
+     * so keys are compared and have to be immutable.
+     */
+    private static final class SkipListMapCopier extends HashMapCopier {
+
+        SkipListMapCopier() {
+            super(null, true);
+        }
+
+        @Override
+        Object[] elements(Object original) {
+            Object[] elements = mapElements((Map<?, ?>) original, false);
+            for (int k = 0; k < elements.length; k += 2) {
+                if (!ImmutableTypes.isImmutable(elements[k].getClass()))
+                    return null;
+            }
+            return elements;
+        }
+
+        @Override
+        Object[] snapshot(Object original) {
+            return mapElements((Map<?, ?>) original, false);
+        }
+
+        @Override
+        boolean readsElement(Object element, int index) {
+            return index % 2 == 0 && !ImmutableTypes.isImmutable(element.getClass());
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return new ConcurrentSkipListMap<>(comparator(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return comparator(original) == null;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return ((SortedMap<?, ?>) original).comparator() == ((SortedMap<?, ?>) copy).comparator();
+        }
+    }
+
+    /**
+     * Elements are added with {@link TreeMap#putAll(Map)} of a sorted view, which builds the tree
+     * in linear time without comparing keys, so keys don't need to be complete.
+     */
+    private static final class TreeMapCopier extends CollectionCopier {
+
+        @Override
+        Object[] elements(Object original) {
+            return mapElements((Map<?, ?>) original, false);
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return new TreeMap<>(comparator(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return comparator(original) == null;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return ((SortedMap<?, ?>) original).comparator() == ((SortedMap<?, ?>) copy).comparator();
+        }
+
+        @Override
+        void clear(Object copy) {
+            ((Map<?, ?>) copy).clear();
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") TreeMap<Object, Object> map = (TreeMap<Object, Object>) copy;
+            map.putAll(new SortedMapView(map.comparator(), elements));
+        }
+    }
+
+    /**
+     * Elements are added with {@link TreeSet#addAll(Collection)} of a sorted view, which builds the tree
+     * in linear time without comparing elements.
+     */
+    private static final class TreeSetCopier extends CollectionCopier {
+
+        @Override
+        Object[] elements(Object original) {
+            return ((Set<?>) original).toArray();
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return new TreeSet<>(comparator(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return comparator(original) == null;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return ((TreeSet<?>) original).comparator() == ((TreeSet<?>) copy).comparator();
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") TreeSet<Object> set = (TreeSet<Object>) copy;
+            set.addAll(new SortedSetView(set.comparator(), elements));
+        }
+    }
+
+    /**
+     * Adds elements one by one like {@link SkipListMapCopier}, so elements are compared and have to be immutable.
+     */
+    private static final class SkipListSetCopier extends CollectionCopier {
+
+        @Override
+        Object[] elements(Object original) {
+            Object[] elements = ((Set<?>) original).toArray();
+            for (Object e : elements) {
+                if (!ImmutableTypes.isImmutable(e.getClass()))
+                    return null;
+            }
+            return elements;
+        }
+
+        @Override
+        Object[] snapshot(Object original) {
+            return ((Set<?>) original).toArray();
+        }
+
+        @Override
+        Object[] portableElements(Object original) {
+            return snapshot(original);
+        }
+
+        @Override
+        boolean readsElement(Object element, int index) {
+            return !ImmutableTypes.isImmutable(element.getClass());
+        }
+
+        @Override
+        Object newInstance(Object original, int length) {
+            return new ConcurrentSkipListSet<>(comparator(original));
+        }
+
+        @Override
+        boolean isPortable(Object original) {
+            return comparator(original) == null;
+        }
+
+        @Override
+        boolean canReuse(Object original, Object copy, int length) {
+            return ((SortedSet<?>) original).comparator() == ((SortedSet<?>) copy).comparator();
+        }
+
+        @Override
+        void fill(Object copy, Object[] elements) {
+            @SuppressWarnings("unchecked") Set<Object> set = (Set<Object>) copy;
+            set.addAll(Arrays.asList(elements));
+        }
+    }
+
+    /**
+     * Minimal {@link SortedMap} over interleaved keys and values already in order,
+     * supports only what {@link TreeMap#putAll(Map)} needs.
+     */
+    private static final class SortedMapView extends AbstractMap<Object, Object> implements SortedMap<Object, Object> {
+
+        private final Comparator<? super Object> comparator;
+        private final Object[] elements;
+
+        SortedMapView(Comparator<? super Object> comparator, Object[] elements) {
+            this.comparator = comparator;
+            this.elements = elements;
+        }
+
+        @Override
+        public Comparator<? super Object> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public int size() {
+            return elements.length / 2;
+        }
+
+        @Override
+        public Set<Entry<Object, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Object, Object>> iterator() {
+                    return new Iterator<>() {
+                        private int k;
+
+                        @Override
+                        public boolean hasNext() {
+                            return k < elements.length;
+                        }
+
+                        @Override
+                        public Entry<Object, Object> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            Entry<Object, Object> e = new SimpleImmutableEntry<>(elements[k], elements[k + 1]);
+                            k += 2;
+                            return e;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return elements.length / 2;
+                }
+            };
+        }
+
+        @Override
+        public SortedMap<Object, Object> subMap(Object fromKey, Object toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<Object, Object> headMap(Object toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<Object, Object> tailMap(Object fromKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object firstKey() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object lastKey() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Minimal {@link SortedSet} over elements already in order,
+     * supports only what {@link TreeSet#addAll(Collection)} needs.
+     */
+    private static final class SortedSetView extends AbstractSet<Object> implements SortedSet<Object> {
+
+        private final Comparator<? super Object> comparator;
+        private final Object[] elements;
+
+        SortedSetView(Comparator<? super Object> comparator, Object[] elements) {
+            this.comparator = comparator;
+            this.elements = elements;
+        }
+
+        @Override
+        public Comparator<? super Object> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return Arrays.asList(elements).iterator();
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+
+        @Override
+        public SortedSet<Object> subSet(Object fromElement, Object toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Object> headSet(Object toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Object> tailSet(Object fromElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object first() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object last() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
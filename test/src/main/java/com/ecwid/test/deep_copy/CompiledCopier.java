@@ -0,0 +1,19 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Copier of the fields which do not require deep copy (primitives and immutable references).
+ * Implementations are generated at runtime by {@link CopierCompiler} as hidden classes with
+ * straight-line field reads and writes.
+ * <p>
+ * The interface is public only because generated classes live in the package of the copied class.
+ * It is not supposed to be implemented by hand.
+ */
+public interface CompiledCopier {
+
+    /**
+     * Copies fields from {@code src} to {@code dst}. Both objects are of the same class.
+     * @param src original object
+     * @param dst copy
+     */
+    void copy(Object src, Object dst);
+}
@@ -0,0 +1,100 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Thread safe {@link CopyTable} for parallel copy. Keys are spread by {@link System#identityHashCode(Object)}
+ * over independently locked {@link IdentityHashMap} stripes, so threads rarely contend for the same lock.
+ * {@link #putReserved(Object, Object)} is atomic: only one thread wins the right to fill a copy.
+ * <p>
+ * Table also keeps copies of collections registered but not filled yet, so an engine can tell whether
+ * a collection copied by another engine is ready to be passed to a record constructor.
+ */
+final class ConcurrentCopyTable implements CopyTable {
+
+    private final IdentityHashMap<Object, Object>[] stripes;
+    private final IdentityHashMap<Object, Object>[] unfilled;
+    private final int mask;
+
+    /**
+     * @param parallelism expected number of threads using the table
+     */
+    ConcurrentCopyTable(int parallelism) {
+        int size = Integer.highestOneBit(Math.max(parallelism, 1) * 8 - 1) << 1;
+        this.stripes = stripes(size);
+        this.unfilled = stripes(size);
+        this.mask = size - 1;
+    }
+
+    private static IdentityHashMap<Object, Object>[] stripes(int size) {
+        @SuppressWarnings("unchecked")
+        IdentityHashMap<Object, Object>[] s = (IdentityHashMap<Object, Object>[]) new IdentityHashMap<?, ?>[size];
+        for (int k = 0; k < size; k++)
+            s[k] = new IdentityHashMap<>();
+        return s;
+    }
+
+    private IdentityHashMap<Object, Object> stripe(IdentityHashMap<Object, Object>[] stripes, Object key) {
+        int h = System.identityHashCode(key);
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    private IdentityHashMap<Object, Object> stripe(Object original) {
+        return stripe(stripes, original);
+    }
+
+    @Override
+    public Object get(Object original) {
+        IdentityHashMap<Object, Object> stripe = stripe(original);
+        synchronized (stripe) {
+            return stripe.get(original);
+        }
+    }
+
+    @Override
+    public Object getOrReserve(Object original) {
+        return get(original);
+    }
+
+    @Override
+    public Object putReserved(Object original, Object copy) {
+        IdentityHashMap<Object, Object> stripe = stripe(original);
+        synchronized (stripe) {
+            Object existing = stripe.putIfAbsent(original, copy);
+            return existing != null ? existing : copy;
+        }
+    }
+
+    /**
+     * Marks copy of a collection as not filled, before it is registered.
+     * @param copy new collection
+     */
+    void filling(Object copy) {
+        IdentityHashMap<Object, Object> stripe = stripe(unfilled, copy);
+        synchronized (stripe) {
+            stripe.put(copy, copy);
+        }
+    }
+
+    /**
+     * Marks copy of a collection as filled, its elements are visible to threads which see it filled.
+     * @param copy collection passed to {@link #filling(Object)}
+     */
+    void filled(Object copy) {
+        IdentityHashMap<Object, Object> stripe = stripe(unfilled, copy);
+        synchronized (stripe) {
+            stripe.remove(copy);
+        }
+    }
+
+    /**
+     * @param copy copy registered in the table
+     * @return {@code false} if the copy is a collection which is not filled yet
+     */
+    boolean isFilled(Object copy) {
+        IdentityHashMap<Object, Object> stripe = stripe(unfilled, copy);
+        synchronized (stripe) {
+            return !stripe.containsKey(copy);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates {@link CompiledCopier} implementations for a single class.
+ * <p>
+ * Generated class is defined with {@link MethodHandles.Lookup#defineHiddenClass} as a nestmate of the copied class,
+ * so it can read and write private fields directly:
+ * <pre>
+ * public void copy(Object src, Object dst) {
+ *     T s = (T) src;
+ *     T d = (T) dst;
+ *     d.f1 = s.f1;
+ *     d.f2 = s.f2;
+ *     ...
+ * }
+ * </pre>
+ * The code has no branches, so class file doesn't need stack map frames.
+ * Final fields can't be assigned outside of constructor of the declaring class, so they are never compiled.
+ */
+final class CopierCompiler {
+
+    private static final int CLASS_VERSION = 61; // Java 17
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ALOAD = 0x19;
+    private static final int ASTORE = 0x3a;
+    private static final int CHECKCAST = 0xc0;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int RETURN = 0xb1;
+
+    private CopierCompiler() {
+    }
+
+    /**
+     * @param field field to check
+     * @return if the field can be copied by generated code
+     */
+    static boolean isCompilable(Field field) {
+        return !Modifier.isFinal(field.getModifiers()) && !Modifier.isStatic(field.getModifiers());
+    }
+
+    /**
+     * Compiles copier for fields declared in {@code declaringClass}.
+     * @param declaringClass class which declares all the {@code fields}
+     * @param fields fields to copy, see {@link #isCompilable(Field)}
+     * @return compiled copier or {@code null} if copier can't be defined for the class
+     */
+    static CompiledCopier compile(Class<?> declaringClass, List<Field> fields) {
+        if (declaringClass.isHidden() || declaringClass.getModule() != CopierCompiler.class.getModule())
+            return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(declaringClass, MethodHandles.lookup());
+            byte[] bytes = generate(declaringClass, fields);
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true, MethodHandles.Lookup.ClassOption.NESTMATE);
+            return (CompiledCopier) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            // any linkage or access problem means we stay on reflective path
+            return null;
+        }
+    }
+
+    private static byte[] generate(Class<?> declaringClass, List<Field> fields) throws IOException {
+        String owner = internalName(declaringClass);
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(owner + "$$Copier");
+        int superClass = cp.classRef("java/lang/Object");
+        int copierInterface = cp.classRef(internalName(CompiledCopier.class));
+        int ownerClass = cp.classRef(owner);
+        int objectInit = cp.methodRef("java/lang/Object", "<init>", "()V");
+        int code = cp.utf8("Code");
+        int initName = cp.utf8("<init>");
+        int initDesc = cp.utf8("()V");
+        int copyName = cp.utf8("copy");
+        int copyDesc = cp.utf8("(Ljava/lang/Object;Ljava/lang/Object;)V");
+
+        ByteArrayOutputStream copyCode = new ByteArrayOutputStream();
+        DataOutputStream c = new DataOutputStream(copyCode);
+        c.writeByte(ALOAD_1);
+        c.writeByte(CHECKCAST);
+        c.writeShort(ownerClass);
+        c.writeByte(ASTORE);
+        c.writeByte(3);
+        c.writeByte(ALOAD_2);
+        c.writeByte(CHECKCAST);
+        c.writeShort(ownerClass);
+        c.writeByte(ASTORE);
+        c.writeByte(4);
+        int maxStack = 1;
+        for (Field field : fields) {
+            int ref = cp.fieldRef(owner, field.getName(), field.getType().descriptorString());
+            c.writeByte(ALOAD);
+            c.writeByte(4);
+            c.writeByte(ALOAD);
+            c.writeByte(3);
+            c.writeByte(GETFIELD);
+            c.writeShort(ref);
+            c.writeByte(PUTFIELD);
+            c.writeShort(ref);
+            Class<?> type = field.getType();
+            maxStack = Math.max(maxStack, type == long.class || type == double.class ? 3 : 2);
+        }
+        c.writeByte(RETURN);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        cp.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(copierInterface);
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+
+        byte[] initCode = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+        writeMethod(out, initName, initDesc, code, 1, 1, initCode);
+        writeMethod(out, copyName, copyDesc, code, maxStack, 5, copyCode.toByteArray());
+
+        out.writeShort(0); // attributes
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttribute,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    private static String internalName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    /**
+     * Minimal constant pool writer, only entries needed by generated copiers.
+     */
+    private static final class ConstantPool {
+
+        private static final int UTF8 = 1;
+        private static final int CLASS = 7;
+        private static final int FIELD_REF = 9;
+        private static final int METHOD_REF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) throws IOException {
+            Integer index = entries.get("U" + value);
+            if (index != null)
+                return index;
+            out.writeByte(UTF8);
+            out.writeUTF(value);
+            return register("U" + value);
+        }
+
+        int classRef(String internalName) throws IOException {
+            Integer index = entries.get("C" + internalName);
+            if (index != null)
+                return index;
+            int name = utf8(internalName);
+            out.writeByte(CLASS);
+            out.writeShort(name);
+            return register("C" + internalName);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) throws IOException {
+            return memberRef(FIELD_REF, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            return memberRef(METHOD_REF, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+            String key = "M" + tag + owner + "." + name + ":" + descriptor;
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            int ownerClass = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            out.writeByte(tag);
+            out.writeShort(ownerClass);
+            out.writeShort(nameAndType);
+            return register(key);
+        }
+
+        private int nameAndType(String name, String descriptor) throws IOException {
+            String key = "N" + name + ":" + descriptor;
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+            int n = utf8(name);
+            int d = utf8(descriptor);
+            out.writeByte(NAME_AND_TYPE);
+            out.writeShort(n);
+            out.writeShort(d);
+            return register(key);
+        }
+
+        private int register(String key) {
+            int index = count++;
+            entries.put(key, index);
+            return index;
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+    }
+}
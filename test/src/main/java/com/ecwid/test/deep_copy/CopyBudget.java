@@ -0,0 +1,175 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Limits and counters of one copy, charged by {@link CopyEngine} for each copied object.
+ * <p>
+ * Number of objects and estimated bytes are checked on each charge. Time, cancellation and progress are checked
+ * every {@link #CHECK_INTERVAL} objects, so {@link System#nanoTime()} is not called per object.
+ * <p>
+ * Size of an object is estimated like a 64-bit JVM with compressed references lays it out: 12 bytes of header,
+ * 4 bytes per reference, natural size of primitives, aligned to 8 bytes. Collections rebuilt by
+ * {@link CollectionCopier} are charged for their backing array or 32 more bytes per element for their internal
+ * nodes. Estimate is meant to catch graphs orders of magnitude larger than expected, not to measure memory.
+ */
+final class CopyBudget {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Size of an internal node per element of a linked or hash based collection.
+     */
+    private static final int ELEMENT_NODE_SIZE = 32;
+
+    private static final ClassValue<Long> SHALLOW_SIZES = new ClassValue<>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long size = 12;
+            for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+                for (Field field : cl.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()))
+                        size += sizeOf(field.getType());
+                }
+            }
+            return align(size);
+        }
+    };
+
+    private final long maxObjects;
+    private final long maxBytes;
+    private final long timeoutNanos;
+    private final long start = System.nanoTime();
+
+    /**
+     * Polled every {@link #CHECK_INTERVAL} objects, {@code null} if copy can't be cancelled.
+     */
+    private final BooleanSupplier cancelled;
+
+    private final Consumer<CopyProgress> listener;
+    private long nextProgress = start + PROGRESS_INTERVAL;
+
+    private long objects;
+    private long bytes;
+    private int countdown = CHECK_INTERVAL;
+
+    /**
+     * @param options options with limits
+     * @param cancelled returns {@code true} when the copy has to stop, may be {@code null}
+     * @param listener receives progress periodically, may be {@code null}
+     */
+    CopyBudget(CopyOptions options, BooleanSupplier cancelled, Consumer<CopyProgress> listener) {
+        this.maxObjects = options.maxObjects;
+        this.maxBytes = options.maxBytes;
+        this.timeoutNanos = options.timeoutNanos;
+        this.cancelled = cancelled;
+        this.listener = listener;
+    }
+
+    /**
+     * Counts the copy of the object.
+     * @param original object to copy
+     * @param pending number of pending entries of the engine, reported as progress
+     * @return exceeded limit, {@code null} if copy can go on
+     * @throws CancellationException if the copy is cancelled
+     */
+    CopyBudgetExceededException.Limit charge(Object original, int pending) {
+        objects++;
+        bytes += estimate(original);
+        if (objects > maxObjects)
+            return CopyBudgetExceededException.Limit.OBJECTS;
+        if (bytes > maxBytes)
+            return CopyBudgetExceededException.Limit.BYTES;
+        if (--countdown == 0) {
+            countdown = CHECK_INTERVAL;
+            return checkpoint(pending);
+        }
+        return null;
+    }
+
+    /**
+     * Checks cancellation, time and reports progress. Called on charges and while large collections are scheduled.
+     * @param pending number of pending entries of the engine, reported as progress
+     * @return exceeded limit, {@code null} if copy can go on
+     * @throws CancellationException if the copy is cancelled
+     */
+    CopyBudgetExceededException.Limit checkpoint(int pending) {
+        if (cancelled != null && cancelled.getAsBoolean())
+            throw new CancellationException("Copy is cancelled after " + objects + " objects");
+        long now = System.nanoTime();
+        if (listener != null && now - nextProgress >= 0) {
+            nextProgress = now + PROGRESS_INTERVAL;
+            listener.accept(progress(pending));
+        }
+        if (now - start > timeoutNanos)
+            return CopyBudgetExceededException.Limit.TIME;
+        return null;
+    }
+
+    CopyProgress progress(int pending) {
+        return new CopyProgress(objects, bytes, pending);
+    }
+
+    /**
+     * @param limit exceeded limit
+     * @param path path of the object which exceeded the limit
+     * @return exception to abort the copy with
+     */
+    CopyBudgetExceededException exceeded(CopyBudgetExceededException.Limit limit, String path) {
+        String max = switch (limit) {
+            case OBJECTS -> maxObjects + " objects";
+            case BYTES -> maxBytes + " bytes";
+            case TIME -> Duration.ofNanos(timeoutNanos).toString();
+        };
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new CopyBudgetExceededException("Copy exceeded the limit of " + max + " at " + path + ", copied "
+                + objects + " objects (about " + bytes + " bytes) in " + elapsed + " ms", limit, path, objects, bytes);
+    }
+
+    /**
+     * @param obj original object
+     * @return estimated size of its copy in bytes, see {@link CopyBudget}
+     */
+    static long estimate(Object obj) {
+        Class<?> type = obj.getClass();
+        if (type.isArray())
+            return align(16 + (long) Array.getLength(obj) * sizeOf(type.componentType()));
+        long size = SHALLOW_SIZES.get(type);
+        if (CollectionCopier.of(type) != null) {
+            if (obj instanceof RandomAccess || obj instanceof ArrayDeque)
+                size += align(16 + 4L * ((Collection<?>) obj).size()); // backing array
+            else if (obj instanceof Collection<?> c)
+                size += (long) c.size() * ELEMENT_NODE_SIZE;
+            else if (obj instanceof Map<?, ?> m)
+                size += (long) m.size() * ELEMENT_NODE_SIZE;
+        }
+        return size;
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class || !type.isPrimitive())
+            return 4;
+        if (type == short.class || type == char.class)
+            return 2;
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
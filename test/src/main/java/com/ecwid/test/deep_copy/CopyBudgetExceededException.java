@@ -0,0 +1,68 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Copy is aborted because it exceeded one of the limits set by {@link CopyOptions}.
+ * Path tells where in the original graph the copy was when the limit was hit, like
+ * {@code com.example.Order.customer.registry.orders[17]}. It usually points to the reference which
+ * leads to an unexpectedly large part of the graph.
+ */
+public class CopyBudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Limit {
+        /**
+         * {@link CopyOptions.Builder#maxObjects(long)}
+         */
+        OBJECTS,
+        /**
+         * {@link CopyOptions.Builder#maxBytes(long)}
+         */
+        BYTES,
+        /**
+         * {@link CopyOptions.Builder#timeout(java.time.Duration)}
+         */
+        TIME
+    }
+
+    private final Limit limit;
+    private final String path;
+    private final long objects;
+    private final long bytes;
+
+    CopyBudgetExceededException(String message, Limit limit, String path, long objects, long bytes) {
+        super(message);
+        this.limit = limit;
+        this.path = path;
+        this.objects = objects;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return limit which was exceeded
+     */
+    public Limit limit() {
+        return limit;
+    }
+
+    /**
+     * @return path from the root to the object which was about to be copied
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * @return number of objects copied before the copy was aborted
+     */
+    public long objects() {
+        return objects;
+    }
+
+    /**
+     * @return estimated size of objects copied before the copy was aborted
+     */
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,119 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Scratch structures of a copy (identity map and work stack of {@link CopyEngine}), reused by many copies.
+ * For small graphs setting these structures up costs more than the copy itself, with a reused context a copy
+ * allocates only the copied objects.
+ * <p>
+ * Context is not thread safe, it makes one copy at a time. Callers which copy at a high rate from many threads
+ * take contexts from a shared pool:
+ * <pre>
+ * try (CopyContext context = CopyContext.acquire()) {
+ *     copy = context.deepCopy(man);
+ * }
+ * </pre>
+ * {@link CopyUtils#deepCopy(Object)} does the same. The pool is a small array of slots taken and returned
+ * by atomic operations, not a {@link ThreadLocal}: contexts are not tied to threads, so virtual threads don't
+ * create a context each and carrier threads don't pin them. When every slot near the thread's one is taken,
+ * a new context is created, when every slot is occupied, returned context is dropped.
+ * <p>
+ * After a copy the context is cleared. Structures which grew beyond {@link #MAX_RETAINED_CAPACITY} for an unusually
+ * large graph are replaced with small ones, so the pool keeps little memory.
+ */
+public final class CopyContext implements AutoCloseable {
+
+    /**
+     * Largest capacity of the identity map and the work stack kept between copies.
+     */
+    static final int MAX_RETAINED_CAPACITY = 1 << 12;
+
+    /**
+     * Number of slots probed by {@link #acquire()} and {@link #close()}.
+     */
+    private static final int PROBES = 4;
+
+    private static final AtomicReferenceArray<CopyContext> POOL =
+            new AtomicReferenceArray<>(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+
+    private final IdentityCopyMap copies = new IdentityCopyMap();
+    private final CopyEngine engine = new CopyEngine(copies);
+
+    /**
+     * {@code true} while the context is in the pool, guards against returning it twice.
+     */
+    private boolean pooled;
+
+    /**
+     * Creates a context owned by the caller, it doesn't have to be returned to the pool.
+     */
+    public CopyContext() {
+    }
+
+    /**
+     * Takes a context from the pool or creates a new one. Return it by {@link #close()}.
+     * @return context for the calling thread's copies
+     */
+    public static CopyContext acquire()
+    {
+        int mask = POOL.length() - 1;
+        int start = slot();
+        for (int k = 0; k < PROBES; k++) {
+            CopyContext context = POOL.getAndSet((start + k) & mask, null);
+            if (context != null) {
+                context.pooled = false;
+                return context;
+            }
+        }
+        return new CopyContext();
+    }
+
+    /**
+     * Deep copy object like {@link CopyUtils#deepCopy(Object)}, context is cleared afterwards.
+     * @param obj object to copy
+     * @return deep copy of the object
+     * @param <T> object type
+     */
+    public <T> T deepCopy(T obj) {
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return obj;
+        try {
+            @SuppressWarnings("unchecked") T r = (T) engine.copy(obj);
+            return r;
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Clears the context, shrinks structures which grew too large. Copies clear the context themselves.
+     */
+    public void reset() {
+        engine.reset(MAX_RETAINED_CAPACITY);
+        copies.clear(MAX_RETAINED_CAPACITY);
+    }
+
+    /**
+     * Returns the context to the pool, it must not be used after that.
+     */
+    @Override
+    public void close() {
+        if (pooled)
+            return;
+        reset();
+        pooled = true;
+        int mask = POOL.length() - 1;
+        int start = slot();
+        for (int k = 0; k < PROBES; k++) {
+            if (POOL.compareAndSet((start + k) & mask, null, this))
+                return;
+        }
+        pooled = false; // pool is full, context is dropped
+    }
+
+    private static int slot() {
+        long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B97F4A7C15L >>> 40);
+    }
+}
@@ -0,0 +1,80 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counters of one measured copy, updated by {@link CopyEngine} only when {@link CopyMetrics} are collected.
+ * Not thread safe: every engine of a parallel copy has its own counters, they are added up when engines finish.
+ */
+final class CopyCounters {
+
+    private static final CopyStats.Strategy[] STRATEGIES = CopyStats.Strategy.values();
+
+    final long start = System.nanoTime();
+
+    /**
+     * Event of the copy, committed if JFR records it.
+     */
+    final CopyEvent event;
+
+    private long objects;
+    private long arrays;
+    private long bytes;
+    private long identityHits;
+    private final long[] strategies = new long[STRATEGIES.length];
+    private final Map<Class<?>, long[]> classes = new HashMap<>();
+
+    CopyCounters(CopyEvent event) {
+        this.event = event;
+    }
+
+    /**
+     * Counts a new copy.
+     * @param original object which was copied
+     * @param strategy how the copy was instantiated
+     */
+    void copied(Object original, CopyStats.Strategy strategy) {
+        Class<?> type = original.getClass();
+        objects++;
+        if (type.isArray())
+            arrays++;
+        bytes += CopyBudget.estimate(original);
+        strategies[strategy.ordinal()]++;
+        classes.computeIfAbsent(type, t -> new long[1])[0]++;
+    }
+
+    /**
+     * Counts a reference resolved to an already made copy.
+     */
+    void hit() {
+        identityHits++;
+    }
+
+    /**
+     * Adds counters of another engine of the same copy. Engines of a parallel copy finish on different threads.
+     */
+    synchronized void add(CopyCounters other) {
+        objects += other.objects;
+        arrays += other.arrays;
+        bytes += other.bytes;
+        identityHits += other.identityHits;
+        for (int k = 0; k < strategies.length; k++)
+            strategies[k] += other.strategies[k];
+        other.classes.forEach((type, count) -> classes.computeIfAbsent(type, t -> new long[1])[0] += count[0]);
+    }
+
+    synchronized CopyStats stats(long nanos) {
+        Map<Class<?>, Long> perClass = new HashMap<>();
+        classes.forEach((type, count) -> perClass.put(type, count[0]));
+        Map<CopyStats.Strategy, Long> perStrategy = new EnumMap<>(CopyStats.Strategy.class);
+        for (int k = 0; k < strategies.length; k++) {
+            if (strategies[k] > 0)
+                perStrategy.put(STRATEGIES[k], strategies[k]);
+        }
+        return new CopyStats(1, objects, arrays, bytes, identityHits, nanos,
+                Collections.unmodifiableMap(perClass), Collections.unmodifiableMap(perStrategy));
+    }
+}
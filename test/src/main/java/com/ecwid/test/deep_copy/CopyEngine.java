@@ -0,0 +1,1062 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+
+/**
+ * Traversal of the object graph without recursion.
+ * <p>
+ * Pending work is kept in a flat array-backed stack of {@code (source, target, slot)} entries:
+ * {@code source} is the original object to copy, and its copy has to be stored into {@code target}
+ * at {@code slot}. Slot is an index of the element when {@code target} is an array,
+ * otherwise it is an index in {@link CopyPlan#objectFields} of the target class.
+ * Entry with {@code null} target is the root of the graph. Arrays are nodes of the graph like any other object,
+ * they can be the root, elements of other arrays or values of {@code Object} fields.
+ * <p>
+ * Collections handled by {@link CollectionCopier} are copied through a snapshot array of their elements:
+ * elements are scheduled with the snapshot as target, and below them a {@link #FILL} entry
+ * {@code (snapshot, collection copy, FILL)} is pushed. It is popped only after all the elements above it,
+ * then copied elements are added to the collection.
+ * <p>
+ * Records can't be filled after they are created, so a record is created by its canonical constructor only after
+ * all its components are copied: components are scheduled with an array of component values as target,
+ * and below them a {@link #RECORD} entry is pushed. Record can't be copied if it is reachable from its own
+ * components before its copy exists.
+ * <p>
+ * Copy is registered in {@code copies} before its fields are visited, so shared and cyclic references are
+ * resolved to the same copy. Engine is not thread safe and is supposed to be used for a single copy.
+ * Parallel copy (see {@link ParallelCopier}) runs several engines over a shared thread safe {@link CopyTable}:
+ * an engine which loses the race to register a copy just uses the winner's copy. A collection copied by another
+ * engine may be registered but not filled yet, a record is created only when such components are filled: until then
+ * the engine is {@link #blocked()} by the record entry on top of its stack.
+ * <p>
+ * {@link #copyInto(Object, Object)} copies into an existing graph: the value found in {@code target} at {@code slot}
+ * is a candidate for the copy of {@code source}. Candidate of the same class (and length for arrays) is taken
+ * as the copy and overwritten in place, each object of the target graph is taken at most once.
+ * <p>
+ * {@link CopyOptions} are checked for each scheduled object against the policy of its class, and for each reference
+ * field against precomputed actions of its class (see {@link CopyOptions.ClassPolicy}). When maximum depth is set,
+ * depth of every entry is kept in a parallel array.
+ * <p>
+ * When the copy has a budget (see {@link CopyBudget}), every new copy is charged, and every entry keeps its
+ * {@link Trail}: the way from the root to the object which owns the reference. Trail is rendered as a path
+ * only when a limit is exceeded.
+ * <p>
+ * When the copy is measured (see {@link CopyMetrics}), new copies and references resolved to existing copies
+ * are counted in {@link CopyCounters}, otherwise the only cost is a {@code null} check.
+ * <p>
+ * Fields of {@link VersionStamped} objects are read optimistically: flat fields are copied and reference fields
+ * are read until the stamp validates the read, only then references are scheduled.
+ * <p>
+ * Objects of classes with a {@link CopyHandler} are copied by the handler. Children the handler passes back
+ * to {@link CopyHandler.Copier#copy(Object)} are pushed above a mark and drained right away, so the handler gets
+ * their copies before it returns. Entries below the mark wait as usual.
+ * <p>
+ * {@link #refresh(Object, Object, CopyTable)} copies the graph again: candidate is the copy of {@code source}
+ * made last time. Reused collections are refilled only if their elements have changed.
+ */
+final class CopyEngine {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Slot of an entry which fills collection {@code target} with copied elements from {@code source} array.
+     */
+    private static final int FILL = -1;
+
+    /**
+     * Slot of an entry which creates a record, {@code source} is a {@link PendingRecord}.
+     */
+    private static final int RECORD = -2;
+
+    /**
+     * Number of elements of a reference array scheduled at once. Slots below {@link #RECORD} mark entries
+     * which continue copying of {@code source} array into {@code target} array, see {@link #chunkSlot(int)}.
+     */
+    static final int CHUNK = 1024;
+
+    /**
+     * Number of attempts to read a {@link VersionStamped} object consistently.
+     */
+    static final int STABLE_READ_ATTEMPTS = 1000;
+
+    /**
+     * Number of attempts retried right away, later attempts yield to other threads first.
+     */
+    private static final int STABLE_READ_SPINS = 100;
+
+    private final CopyTable copies;
+
+    /**
+     * {@link #copies} shared with other engines of a parallel copy, {@code null} for a sequential copy.
+     */
+    private final ConcurrentCopyTable shared;
+
+    /**
+     * Options of the copy, {@code null} if everything is copied.
+     */
+    private final CopyOptions options;
+
+    private Object[] sources;
+    private Object[] targets;
+    private int[] slots;
+    private int size;
+
+    /**
+     * Depth of each entry, {@code null} unless {@link CopyOptions#maxDepth} is set.
+     * Chunk entries have depth of their array.
+     */
+    private int[] depths;
+
+    /**
+     * Depth of the entry being processed.
+     */
+    private int depth;
+
+    /**
+     * Limits of the copy, {@code null} if there are none.
+     */
+    private final CopyBudget budget;
+
+    /**
+     * Trail of each entry, {@code null} unless the copy has a budget. Chunk entries have trail of their array.
+     */
+    private Trail[] trails;
+
+    /**
+     * Trail of the object being processed.
+     */
+    private Trail trail;
+
+    /**
+     * Counters of the copy, {@code null} unless it is measured.
+     */
+    private CopyCounters counters;
+
+    private Object root;
+
+    /**
+     * Objects of the target graph already taken as copies, {@code null} unless copying into existing graph.
+     */
+    private IdentityCopyMap reused;
+
+    /**
+     * Copies made by the previous copy of the same graph, {@code null} unless refreshing.
+     */
+    private CopyTable previous;
+
+    /**
+     * Records waiting for copies of their components, {@code null} until the first one.
+     */
+    private IdentityCopyMap pendingRecords;
+
+    /**
+     * Originals being copied by their handlers, {@code null} until the first one.
+     */
+    private IdentityCopyMap handled;
+
+    /**
+     * Record which will be created when copies of its components are ready.
+     * @param original original record
+     * @param components values of the components, replaced with their copies
+     * @param target where to store the copy
+     * @param slot where to store the copy
+     */
+    private record PendingRecord(Object original, Object[] components, Object target, int slot) {
+    }
+
+    /**
+     * Object of the original graph and where its copy is stored, linked to the trail of the owner of the reference.
+     * @param parent trail of the object which refers to this one, {@code null} for the root
+     * @param target where the copy is stored, see {@link CopyEngine}
+     * @param slot where the copy is stored, negative {@code -1 - k} for {@code k}-th array field of the owner
+     * @param original the object
+     */
+    private record Trail(Trail parent, Object target, int slot, Object original) {
+    }
+
+    CopyEngine(CopyTable copies) {
+        this(copies, null);
+    }
+
+    CopyEngine(CopyTable copies, CopyOptions options) {
+        this(copies, options, options != null && options.hasBudget() ? new CopyBudget(options, null, null) : null);
+    }
+
+    CopyEngine(CopyTable copies, CopyOptions options, CopyBudget budget) {
+        this.copies = copies;
+        this.shared = copies instanceof ConcurrentCopyTable table ? table : null;
+        this.options = options;
+        this.budget = budget;
+        int capacity = options != null ? Math.max(INITIAL_CAPACITY, options.expectedPending) : INITIAL_CAPACITY;
+        sources = new Object[capacity];
+        targets = new Object[capacity];
+        slots = new int[capacity];
+        if (options != null && options.maxDepth != CopyOptions.UNLIMITED_DEPTH) {
+            depths = new int[capacity];
+            depth = -1; // root is pushed at depth 0
+        }
+        if (budget != null)
+            trails = new Trail[capacity];
+    }
+
+    /**
+     * Copies the graph into existing graph of the same shape, reusing its objects where possible.
+     * Target graph must not share mutable objects with the source graph.
+     * @param obj root of the graph, not {@code null}
+     * @param target root of the graph to overwrite
+     * @return {@code target} or a new object, if it can't be reused
+     */
+    Object copyInto(Object obj, Object target) {
+        reused = new IdentityCopyMap();
+        root = target;
+        return copy(obj);
+    }
+
+    /**
+     * Copies the graph again, objects copied last time are overwritten in place.
+     * @param obj root of the graph, not {@code null}
+     * @param copy copy of the root made last time
+     * @param previous copies made last time, not modified
+     * @return {@code copy}
+     */
+    Object refresh(Object obj, Object copy, CopyTable previous) {
+        this.previous = previous;
+        root = copy;
+        return copy(obj);
+    }
+
+    /**
+     * @param obj root of the graph, not {@code null}
+     * @return deep copy of the graph
+     */
+    Object copy(Object obj) {
+        CopyCounters counters = CopyMetrics.start();
+        this.counters = counters;
+        push(obj);
+        while (size > 0)
+            step();
+        if (counters != null)
+            CopyMetrics.finish(counters, obj);
+        return root;
+    }
+
+    /**
+     * Counts copies made by the engine, used by {@link ParallelCopier} which drives engines by {@link #step()}.
+     * @param counters counters of this engine, engines created by {@link #split()} get their own
+     */
+    void measure(CopyCounters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * @return counters of this engine, {@code null} unless the copy is measured
+     */
+    CopyCounters counters() {
+        return counters;
+    }
+
+    /**
+     * Prepares the engine for another copy, see {@link CopyContext}. Pending entries left by a failed copy
+     * are dropped. Stack which grew beyond {@code maxCapacity} entries is shrunk to the initial capacity.
+     * @param maxCapacity largest capacity of the stack to keep
+     */
+    void reset(int maxCapacity) {
+        if (sources.length > maxCapacity) {
+            sources = new Object[INITIAL_CAPACITY];
+            targets = new Object[INITIAL_CAPACITY];
+            slots = new int[INITIAL_CAPACITY];
+            if (depths != null)
+                depths = new int[INITIAL_CAPACITY];
+            if (trails != null)
+                trails = new Trail[INITIAL_CAPACITY];
+        } else if (size > 0) {
+            Arrays.fill(sources, 0, size, null);
+            Arrays.fill(targets, 0, size, null);
+            if (trails != null)
+                Arrays.fill(trails, 0, size, null);
+        }
+        size = 0;
+        depth = depths != null ? -1 : 0;
+        trail = null;
+        root = null;
+        reused = null;
+        previous = null;
+        pendingRecords = null;
+        handled = null;
+        counters = null;
+    }
+
+    /**
+     * Schedules copy of the graph root.
+     * @param obj root of the graph, not {@code null}
+     */
+    void push(Object obj) {
+        CopyPlan.prepare(obj.getClass());
+        push(obj, null, 0);
+    }
+
+    /**
+     * @return number of pending entries
+     */
+    int pending() {
+        return size;
+    }
+
+    /**
+     * @return copy of the root, if root entry was processed by this engine
+     */
+    Object root() {
+        return root;
+    }
+
+    /**
+     * Moves the older half of pending entries to a new engine sharing the same {@link CopyTable}.
+     * Older entries are closer to the root, so they usually lead to bigger subgraphs.
+     * Entries above the first {@link #FILL} or {@link #RECORD} entry are never moved.
+     * @return engine with moved entries or {@code null} if nothing can be moved
+     */
+    CopyEngine split() {
+        int half = size >>> 1;
+        for (int k = 0; k < half; k++) {
+            if (slots[k] == FILL || slots[k] == RECORD) {
+                half = k; // entries above a fill or record entry have to be processed before it
+                break;
+            }
+        }
+        if (half == 0)
+            return null;
+        CopyEngine other = new CopyEngine(copies, options);
+        if (counters != null)
+            other.counters = new CopyCounters(null);
+        for (int k = 0; k < half; k++) {
+            other.push(sources[k], targets[k], slots[k]);
+            if (depths != null)
+                other.depths[k] = depths[k];
+            if (trails != null)
+                other.trails[k] = trails[k];
+        }
+        int rest = size - half;
+        System.arraycopy(sources, half, sources, 0, rest);
+        System.arraycopy(targets, half, targets, 0, rest);
+        System.arraycopy(slots, half, slots, 0, rest);
+        if (depths != null)
+            System.arraycopy(depths, half, depths, 0, rest);
+        Arrays.fill(sources, rest, size, null);
+        Arrays.fill(targets, rest, size, null);
+        if (trails != null) {
+            System.arraycopy(trails, half, trails, 0, rest);
+            Arrays.fill(trails, rest, size, null);
+        }
+        size = rest;
+        return other;
+    }
+
+    /**
+     * @return {@code true} if the most recent entry creates a record, but some of its components are collections
+     * another engine has not filled yet. {@link #step()} would create the record anyway.
+     */
+    boolean blocked() {
+        return shared != null && size > 0 && slots[size - 1] == RECORD && !isFilled((PendingRecord) sources[size - 1]);
+    }
+
+    /**
+     * @return {@code true} if no copy among components of the record is a collection which is not filled yet
+     */
+    private boolean isFilled(PendingRecord pending) {
+        return isFilled(RecordPlan.of(pending.original().getClass()), pending.components());
+    }
+
+    private boolean isFilled(RecordPlan plan, Object[] values) {
+        for (int k = 0; k < values.length; k++) {
+            if (plan.deep[k] && values[k] != null && !shared.isFilled(values[k]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Processes the most recent pending entry.
+     */
+    void step() {
+        int i = --size;
+        Object source = sources[i];
+        Object target = targets[i];
+        int slot = slots[i];
+        sources[i] = null;
+        targets[i] = null;
+        if (depths != null)
+            depth = depths[i];
+        if (trails != null) {
+            trail = trails[i];
+            trails[i] = null;
+        }
+        if (slot == FILL) {
+            fill(CollectionCopier.of(target.getClass()), target, (Object[]) source);
+            return;
+        }
+        if (slot == RECORD) {
+            createRecord((PendingRecord) source);
+            return;
+        }
+        if (slot < RECORD) {
+            copyElements((Object[]) source, (Object[]) target, -slot - 2);
+            return;
+        }
+        Object copy = copies.getOrReserve(source);
+        if (copy != null && counters != null)
+            counters.hit();
+        if (copy == null && options != null) {
+            CopyOptions.Action action = depth > options.maxDepth
+                    ? CopyOptions.Action.SHARE : options.policy(source.getClass()).action;
+            if (action != CopyOptions.Action.COPY) {
+                store(target, slot, apply(action, source, target, slot));
+                return;
+            }
+        }
+        if (copy == null) {
+            if (budget != null) {
+                charge(trail, target, slot, source);
+                trail = new Trail(trail, target, slot, source);
+            }
+            CopyHandler<Object> handler = CopyHandlers.of(source.getClass());
+            if (handler != null) {
+                copy = copyHandled(handler, source);
+            } else if (source instanceof Record) {
+                copy = copyRecord(source, target, slot);
+                if (copy == null)
+                    return; // stored when components are copied
+            } else {
+                copy = copyObject(source, reused != null ? current(target, slot) : null);
+            }
+        }
+        store(target, slot, copy);
+    }
+
+    private void push(Object source, Object target, int slot) {
+        if (size == sources.length) {
+            int capacity = size << 1;
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            if (depths != null)
+                depths = Arrays.copyOf(depths, capacity);
+            if (trails != null)
+                trails = Arrays.copyOf(trails, capacity);
+        }
+        sources[size] = source;
+        targets[size] = target;
+        slots[size] = slot;
+        if (depths != null)
+            depths[size] = depth + 1;
+        if (trails != null)
+            trails[size] = trail;
+        size++;
+    }
+
+    /**
+     * Charges copy of the object to the budget. Arguments are those of its {@link Trail}, it is created only
+     * if a limit is exceeded.
+     * @throws CopyBudgetExceededException if a limit is exceeded
+     */
+    private void charge(Trail parent, Object target, int slot, Object original) {
+        CopyBudgetExceededException.Limit exceeded = budget.charge(original, size);
+        if (exceeded != null)
+            throw budget.exceeded(exceeded, path(new Trail(parent, target, slot, original)));
+    }
+
+    /**
+     * Checks budget of the copy without charging a new copy.
+     * @throws CopyBudgetExceededException if time is out
+     */
+    private void checkpoint() {
+        CopyBudgetExceededException.Limit exceeded = budget.checkpoint(size);
+        if (exceeded != null)
+            throw budget.exceeded(exceeded, path(trail));
+    }
+
+    /**
+     * @return path from the root to the object of the trail, like {@code Root.field[3].field (ClassOfObject)}
+     */
+    private static String path(Trail trail) {
+        ArrayDeque<Trail> trails = new ArrayDeque<>();
+        for (Trail t = trail; t != null; t = t.parent())
+            trails.push(t);
+        StringBuilder path = new StringBuilder();
+        Trail parent = null;
+        for (Trail t : trails) {
+            if (parent == null) {
+                path.append(t.original().getClass().getName());
+            } else {
+                Object owner = parent.original();
+                if (t.slot() < 0) {
+                    path.append('.').append(CopyPlan.of(owner.getClass()).arrayFields[-1 - t.slot()].name());
+                } else if (owner instanceof Record) {
+                    path.append('.').append(RecordPlan.of(owner.getClass()).components[t.slot()].name());
+                } else if (owner.getClass().isArray()) {
+                    path.append('[').append(t.slot()).append(']');
+                } else if (owner instanceof Map && t.target() instanceof Object[]) {
+                    path.append('[').append(t.slot() / 2).append(t.slot() % 2 == 0 ? "].key" : "].value");
+                } else if (t.target() instanceof Object[]) {
+                    path.append('[').append(t.slot()).append(']');
+                } else {
+                    path.append('.').append(CopyPlan.of(owner.getClass()).objectFields[t.slot()].name());
+                }
+            }
+            parent = t;
+        }
+        return path.append(" (").append(trail.original().getClass().getName()).append(')').toString();
+    }
+
+    /**
+     * @param action action other than {@link CopyOptions.Action#COPY}
+     * @param value value of a field or an element, not {@code null}
+     * @param target where the value is stored, see {@link Trail}
+     * @param slot where the value is stored
+     * @return value to use in the copy
+     */
+    private Object apply(CopyOptions.Action action, Object value, Object target, int slot) {
+        return switch (action) {
+            case SHARE -> value;
+            case SKIP -> null;
+            case SHALLOW -> shallowCopy(value, target, slot);
+            case COPY -> throw new IllegalArgumentException("Unexpected action " + action);
+        };
+    }
+
+    /**
+     * Copy which refers to the same objects as the original. Registered in {@link #copies} like deep copy.
+     * @param obj object to copy
+     * @param target where the copy is stored, see {@link Trail}
+     * @param slot where the copy is stored
+     * @return shallow copy of the object
+     */
+    private Object shallowCopy(Object obj, Object target, int slot) {
+        Object cached = copies.getOrReserve(obj);
+        if (cached != null) {
+            if (counters != null)
+                counters.hit();
+            return cached;
+        }
+        Class<?> clazz = obj.getClass();
+        if (ImmutableTypes.isImmutable(clazz))
+            return obj;
+        if (budget != null)
+            charge(trail, target, slot, obj);
+        Object copy;
+        CopyStats.Strategy strategy;
+        if (clazz.isArray()) {
+            Class<?> componentType = clazz.componentType();
+            copy = componentType.isPrimitive()
+                    ? CopyUtils.copyPrimitiveArray(obj, componentType) : ((Object[]) obj).clone();
+            strategy = CopyStats.Strategy.ARRAY;
+        } else if (obj instanceof Record) {
+            RecordPlan plan = RecordPlan.of(clazz);
+            copy = plan.newInstance(plan.components(obj));
+            strategy = CopyStats.Strategy.CANONICAL_CONSTRUCTOR;
+        } else {
+            CollectionCopier collection = CollectionCopier.of(clazz);
+            Object[] elements = collection != null ? elements(collection, obj) : null;
+            if (elements != null) {
+                copy = collection.newInstance(obj, elements.length);
+                collection.fill(copy, elements);
+                strategy = CopyStats.Strategy.COLLECTION;
+            } else {
+                Instantiator instantiator = Instantiator.of(clazz);
+                copy = instantiator.newInstance(obj);
+                strategy = instantiator.strategy;
+                CopyPlan plan = CopyPlan.of(clazz);
+                Object[] values = obj instanceof VersionStamped stamped ? readStable(stamped, plan, copy) : null;
+                if (values == null)
+                    plan.copyFlatFields(obj, copy);
+                FieldAccessor[] objectFields = plan.objectFields;
+                for (int k = 0; k < objectFields.length; k++)
+                    objectFields[k].set(copy, values != null ? values[k] : objectFields[k].get(obj));
+                FieldAccessor[] arrayFields = plan.arrayFields;
+                for (int k = 0; k < arrayFields.length; k++)
+                    arrayFields[k].set(copy, values != null ? values[objectFields.length + k] : arrayFields[k].get(obj));
+            }
+        }
+        if (counters != null)
+            counters.copied(obj, strategy);
+        return copies.putReserved(obj, copy);
+    }
+
+    /**
+     * @return value currently stored at the slot, it is what {@link #store(Object, int, Object)} will overwrite
+     */
+    private Object current(Object target, int slot) {
+        if (target == null)
+            return root;
+        if (target instanceof Object[] array)
+            return array[slot];
+        return CopyPlan.of(target.getClass()).objectFields[slot].get(target);
+    }
+
+    /**
+     * Takes an object of the target graph as the copy of {@code source}.
+     * @param candidate object of the target graph, may be {@code null}
+     * @param source original object
+     * @return {@code true} if candidate can be overwritten with {@code source}
+     */
+    private boolean claim(Object candidate, Object source) {
+        if (candidate == null || candidate == source || candidate.getClass() != source.getClass())
+            return false;
+        if (previous != null)
+            return true; // copies made last time correspond to originals one to one
+        if (reused.getOrReserve(candidate) != null)
+            return false;
+        reused.putReserved(candidate, candidate);
+        return true;
+    }
+
+    private void store(Object target, int slot, Object copy) {
+        if (target == null) {
+            root = copy;
+        } else if (target instanceof Object[] array) {
+            array[slot] = copy;
+        } else {
+            CopyPlan.of(target.getClass()).objectFields[slot].set(target, copy);
+        }
+    }
+
+    /**
+     * Creates copy of the object, copies fields which don't need deep copy and schedules the rest.
+     * See {@link Instantiator} to understand how copies are instantiated.
+     * @param obj object to copy
+     * @param candidate object to overwrite, if it can be reused, see {@link #copyInto(Object, Object)}
+     * @return copy of the object, its reference fields are filled later.
+     * If another engine registered its copy first, that copy is returned and nothing is scheduled.
+     */
+    private Object copyObject(Object obj, Object candidate) {
+        if (previous != null)
+            candidate = previous.get(obj);
+        Class<?> clazz = obj.getClass();
+        if (clazz.isArray())
+            return copyReservedArray(obj, candidate);
+        CollectionCopier collection = CollectionCopier.of(clazz);
+        if (collection != null) {
+            Object[] elements = elements(collection, obj);
+            if (elements != null)
+                return copyCollection(obj, collection, elements, candidate);
+        }
+        Instantiator instantiator = null;
+        Object copy;
+        boolean reuse = claim(candidate, obj);
+        if (reuse) {
+            copy = candidate;
+        } else {
+            instantiator = Instantiator.of(clazz);
+            copy = instantiator.newInstance(obj);
+        }
+        Object registered = copies.putReserved(obj, copy);
+        if (registered != copy)
+            return registered;
+        if (counters != null)
+            counters.copied(obj, instantiator != null ? instantiator.strategy : CopyStats.Strategy.REUSED);
+
+        CopyPlan plan = CopyPlan.of(clazz);
+        Object[] values = obj instanceof VersionStamped stamped ? readStable(stamped, plan, copy) : null;
+        if (values == null && reuse)
+            plan.patchFlatFields(obj, copy);
+        else if (values == null)
+            plan.copyFlatFields(obj, copy);
+        CopyOptions.Action[] objectActions = null;
+        CopyOptions.Action[] arrayActions = null;
+        if (options != null) {
+            CopyOptions.ClassPolicy policy = options.policy(clazz);
+            objectActions = policy.objectFields;
+            arrayActions = policy.arrayFields;
+            if (policy.skippedFlatFields != null) {
+                for (FieldAccessor field : policy.skippedFlatFields)
+                    field.set(copy, null);
+            }
+        }
+        FieldAccessor[] objectFields = plan.objectFields;
+        for (int k = 0; k < objectFields.length; k++) {
+            FieldAccessor field = objectFields[k];
+            Object value = values != null ? values[k] : field.get(obj);
+            if (objectActions != null && objectActions[k] != CopyOptions.Action.COPY && value != null) {
+                field.set(copy, apply(objectActions[k], value, copy, k));
+                continue;
+            }
+            Object resolved = resolve(value);
+            if (resolved != null || value == null)
+                update(field, copy, resolved, reuse);
+            else
+                push(value, copy, k);
+        }
+        FieldAccessor[] arrayFields = plan.arrayFields;
+        for (int k = 0; k < arrayFields.length; k++) {
+            FieldAccessor field = arrayFields[k];
+            Object value = values != null ? values[objectFields.length + k] : field.get(obj);
+            if (arrayActions != null && arrayActions[k] != CopyOptions.Action.COPY && value != null) {
+                field.set(copy, apply(arrayActions[k], value, copy, -1 - k));
+                continue;
+            }
+            update(field, copy, copyArray(value, reused != null ? field.get(copy) : null, copy, -1 - k), reuse);
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the value into the field of the copy. A reused copy which already holds the value is not written,
+     * so unchanged objects of a refreshed copy are only read.
+     */
+    private static void update(FieldAccessor field, Object copy, Object value, boolean reuse) {
+        if (!reuse || field.get(copy) != value)
+            field.set(copy, value);
+    }
+
+    /**
+     * Copies flat fields of the object into the copy and reads its reference fields, until the stamp of the object
+     * validates the read, see {@link VersionStamped}.
+     * @return values of {@link CopyPlan#objectFields} followed by values of {@link CopyPlan#arrayFields}
+     * @throws ConcurrentModificationException if no read is valid after {@link #STABLE_READ_ATTEMPTS} attempts
+     */
+    private static Object[] readStable(VersionStamped obj, CopyPlan plan, Object copy) {
+        FieldAccessor[] objectFields = plan.objectFields;
+        FieldAccessor[] arrayFields = plan.arrayFields;
+        Object[] values = new Object[objectFields.length + arrayFields.length];
+        for (int attempt = 1; attempt <= STABLE_READ_ATTEMPTS; attempt++) {
+            long stamp = obj.stamp();
+            if (stamp != 0) {
+                plan.copyFlatFields(obj, copy);
+                for (int k = 0; k < objectFields.length; k++)
+                    values[k] = objectFields[k].get(obj);
+                for (int k = 0; k < arrayFields.length; k++)
+                    values[objectFields.length + k] = arrayFields[k].get(obj);
+                VarHandle.acquireFence(); // reads above can't move past validation
+                if (obj.validate(stamp))
+                    return values;
+            }
+            if (attempt < STABLE_READ_SPINS)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+        throw new ConcurrentModificationException(obj.getClass().getName() + " was modified during "
+                + STABLE_READ_ATTEMPTS + " attempts to copy it");
+    }
+
+    /**
+     * @return snapshot of the collection elements, see {@link CopyOptions.Builder#concurrentSnapshots()}
+     */
+    private Object[] elements(CollectionCopier collection, Object obj) {
+        return options != null && options.concurrentSnapshots ? collection.snapshot(obj) : collection.elements(obj);
+    }
+
+    /**
+     * Creates copy of the record, if copies of all its components are known. Otherwise schedules the components
+     * and creation of the record.
+     * @param obj record to copy, reserved in {@link #copies}
+     * @param target where to store the copy
+     * @param slot where to store the copy
+     * @return copy of the record, {@code null} if it is created later
+     */
+    private Object copyRecord(Object obj, Object target, int slot) {
+        if (pendingRecords != null && pendingRecords.containsKey(obj))
+            throw new IllegalArgumentException("Can't copy cyclic reference to record " + obj.getClass().getName()
+                    + ", record is created only after its components");
+        RecordPlan plan = RecordPlan.of(obj.getClass());
+        Object[] values = plan.components(obj);
+        CopyOptions.Action[] actions = options != null ? options.policy(obj.getClass()).components : null;
+        PendingRecord pending = null;
+        for (int k = 0; k < values.length; k++) {
+            Object value = values[k];
+            if (actions != null && actions[k] != CopyOptions.Action.COPY && value != null) {
+                values[k] = apply(actions[k], value, values, k);
+                continue;
+            }
+            if (!plan.deep[k])
+                continue;
+            Object resolved = resolve(value);
+            if (resolved != null || value == null) {
+                values[k] = resolved;
+            } else {
+                if (pending == null) {
+                    pending = new PendingRecord(obj, values, target, slot);
+                    push(pending, null, RECORD);
+                }
+                push(value, values, k);
+            }
+        }
+        if (pending == null && (shared == null || isFilled(plan, values))) {
+            if (counters != null)
+                counters.copied(obj, CopyStats.Strategy.CANONICAL_CONSTRUCTOR);
+            return copies.putReserved(obj, plan.newInstance(values));
+        }
+        if (pending == null) {
+            // components are copied, the record waits for collections filled by other engines
+            pending = new PendingRecord(obj, values, target, slot);
+            push(pending, null, RECORD);
+        }
+        if (pendingRecords == null)
+            pendingRecords = new IdentityCopyMap();
+        pendingRecords.put(obj, pending);
+        return null;
+    }
+
+    /**
+     * @param handler handler of the object class
+     * @param obj object to copy, reserved in {@link #copies}
+     * @return copy made by the handler or registered by another engine
+     */
+    private Object copyHandled(CopyHandler<Object> handler, Object obj) {
+        if (handled == null)
+            handled = new IdentityCopyMap();
+        if (handled.containsKey(obj))
+            throw new IllegalArgumentException("Can't copy cyclic reference to " + obj.getClass().getName()
+                    + ", its handler has to register the copy before copying children");
+        handled.put(obj, obj);
+        Object copy;
+        try {
+            copy = handler.copy(obj, new HandlerCopier(obj));
+        } finally {
+            handled.remove(obj);
+        }
+        if (copy == null)
+            throw new IllegalArgumentException("Handler " + handler + " returned null for " + obj.getClass().getName());
+        Object registered = copies.putReserved(obj, copy);
+        if (registered == copy && counters != null)
+            counters.copied(obj, CopyStats.Strategy.HANDLER);
+        return registered;
+    }
+
+    /**
+     * Copies children of an object for its handler.
+     */
+    private final class HandlerCopier implements CopyHandler.Copier {
+
+        private final Object original;
+
+        HandlerCopier(Object original) {
+            this.original = original;
+        }
+
+        @Override
+        public <V> V copy(V child) {
+            Object resolved = resolve(child);
+            if (resolved == null && child != null) {
+                Object[] holder = new Object[1];
+                int mark = size;
+                push(child, holder, 0);
+                while (size > mark)
+                    step();
+                resolved = holder[0];
+            }
+            @SuppressWarnings("unchecked") V r = (V) resolved;
+            return r;
+        }
+
+        @Override
+        public void register(Object copy) {
+            if (copies.putReserved(original, copy) != copy)
+                throw new IllegalStateException("Copy of " + original.getClass().getName() + " is already registered");
+            handled.remove(original);
+        }
+    }
+
+    private void createRecord(PendingRecord pending) {
+        Object original = pending.original();
+        pendingRecords.remove(original);
+        Object copy = RecordPlan.of(original.getClass()).newInstance(pending.components());
+        if (counters != null)
+            counters.copied(original, CopyStats.Strategy.CANONICAL_CONSTRUCTOR);
+        store(pending.target(), pending.slot(), copies.putReserved(original, copy));
+    }
+
+    /**
+     * @param obj collection to copy
+     * @param collection copier of the collection
+     * @param elements snapshot of the elements, it is replaced with their copies
+     * @param candidate collection to refill, if it can be reused, see {@link #copyInto(Object, Object)}
+     * @return copy of the collection, if some elements are not copied yet, it is filled later
+     */
+    private Object copyCollection(Object obj, CollectionCopier collection, Object[] elements, Object candidate) {
+        Object copy;
+        Object[] candidates = null;
+        if (claim(candidate, obj) && collection.canReuse(obj, candidate, elements.length)) {
+            if (reused != null) {
+                // old elements are candidates for the copies of elements at the same positions
+                candidates = collection.elements(candidate);
+                if (candidates != null && candidates.length != elements.length)
+                    candidates = null;
+            }
+            copy = candidate;
+        } else {
+            copy = collection.newInstance(obj, elements.length);
+        }
+        if (shared != null)
+            shared.filling(copy);
+        Object registered = copies.putReserved(obj, copy);
+        if (registered != copy) {
+            if (shared != null)
+                shared.filled(copy);
+            return registered;
+        }
+        if (counters != null)
+            counters.copied(obj, copy == candidate ? CopyStats.Strategy.REUSED : CopyStats.Strategy.COLLECTION);
+        int fill = size;
+        push(elements, copy, FILL);
+        for (int k = 0; k < elements.length; k++) {
+            Object element = elements[k];
+            Object resolved = resolve(element);
+            if (resolved != null || element == null) {
+                elements[k] = resolved;
+            } else {
+                elements[k] = candidates != null ? candidates[k] : null;
+                push(element, elements, k);
+            }
+            if (budget != null && (k & (CHUNK - 1)) == CHUNK - 1)
+                checkpoint(); // scheduling of a huge collection takes time too
+        }
+        if (size == fill + 1) {
+            // every element is immutable or already copied
+            size = fill;
+            sources[fill] = null;
+            targets[fill] = null;
+            fill(collection, copy, elements);
+        }
+        return copy;
+    }
+
+    private void fill(CollectionCopier collection, Object copy, Object[] elements) {
+        if (reused != null || previous != null)
+            collection.refill(copy, elements);
+        else
+            collection.fill(copy, elements);
+        if (shared != null)
+            shared.filled(copy);
+    }
+
+    /**
+     * Copies array found in a field or an element of another array, applying the class rule of the array like
+     * {@link #step()} does for other objects.
+     * @param array array to copy
+     * @param candidate array currently stored in the field or the element, see {@link #copyInto(Object, Object)}
+     * @param target object or array the copy is stored to, see {@link Trail}
+     * @param slot where the copy is stored
+     * @return copy of the array, elements which are not copied yet are filled later
+     */
+    private Object copyArray(Object array, Object candidate, Object target, int slot) {
+        if (array == null)
+            return null;
+        Object cached = copies.getOrReserve(array);
+        if (cached != null) {
+            if (counters != null)
+                counters.hit();
+            return cached;
+        }
+        if (options != null) {
+            CopyOptions.Action action = options.policy(array.getClass()).action;
+            if (action != CopyOptions.Action.COPY)
+                return apply(action, array, target, slot);
+        }
+        if (previous != null)
+            candidate = previous.get(array);
+        if (budget == null)
+            return copyReservedArray(array, candidate);
+        Trail owner = trail;
+        charge(owner, target, slot, array);
+        if (isPrimitiveArray(array))
+            return copyReservedArray(array, candidate);
+        trail = new Trail(owner, target, slot, array);
+        try {
+            return copyReservedArray(array, candidate);
+        } finally {
+            trail = owner;
+        }
+    }
+
+    /**
+     * Primitive arrays and arrays of immutable elements (like {@code String[]}) are copied in bulk.
+     * Elements of other arrays are scheduled by chunks of {@link #CHUNK} elements.
+     * @param array array to copy, reserved in {@link #copies}
+     * @param candidate array to overwrite, if it has the same type and length, see {@link #copyInto(Object, Object)}
+     * @return copy of the array, elements which are not copied yet are filled later
+     */
+    private Object copyReservedArray(Object array, Object candidate) {
+        Class<?> componentType = array.getClass().componentType();
+        int length = Array.getLength(array);
+        boolean reuse = candidate != null && candidate.getClass() == array.getClass()
+                && Array.getLength(candidate) == length && claim(candidate, array);
+        if (counters != null)
+            counters.copied(array, reuse ? CopyStats.Strategy.REUSED : CopyStats.Strategy.ARRAY);
+        if (componentType.isPrimitive()) {
+            if (reuse) {
+                System.arraycopy(array, 0, candidate, 0, length);
+                return copies.putReserved(array, candidate);
+            }
+            Object copy = CopyUtils.copyPrimitiveArray(array, componentType);
+            return copies.putReserved(array, copy);
+        }
+        Object[] original = (Object[]) array;
+        if (ImmutableTypes.isImmutableFieldType(componentType)) {
+            if (reuse) {
+                System.arraycopy(original, 0, candidate, 0, length);
+                return copies.putReserved(array, candidate);
+            }
+            return copies.putReserved(array, original.clone());
+        }
+        Object[] copy = reuse ? (Object[]) candidate : (Object[]) Array.newInstance(componentType, length);
+        Object registered = copies.putReserved(array, copy);
+        if (registered != copy)
+            return registered;
+        copyElements(original, copy, 0);
+        return copy;
+    }
+
+    /**
+     * Copies or schedules elements of a chunk, which starts at {@code from}.
+     * If there are more elements, continuation of the array is scheduled below the elements of the chunk.
+     */
+    private void copyElements(Object[] original, Object[] copy, int from) {
+        int to = original.length;
+        if (to - from > CHUNK) {
+            to = from + CHUNK;
+            push(original, copy, chunkSlot(to));
+            if (depths != null)
+                depths[size - 1] = depth;
+        }
+        for (int k = from; k < to; k++) {
+            Object element = original[k];
+            Object resolved = resolve(element);
+            if (resolved != null || element == null)
+                copy[k] = resolved;
+            else if (isPrimitiveArray(element))
+                copy[k] = copyArray(element, copy[k], copy, k);
+            else
+                push(element, copy, k);
+        }
+    }
+
+    private static boolean isPrimitiveArray(Object obj) {
+        Class<?> componentType = obj.getClass().componentType();
+        return componentType != null && componentType.isPrimitive();
+    }
+
+    private static int chunkSlot(int from) {
+        return -from - 2;
+    }
+
+    /**
+     * @param value original value
+     * @return value to use in copy, if it is known without copying: immutable value itself or already made copy.
+     * {@code null} if value has to be copied.
+     */
+    private Object resolve(Object value) {
+        if (value == null)
+            return null;
+        if (ImmutableTypes.isImmutable(value.getClass()))
+            return value;
+        Object copy = copies.get(value);
+        if (copy != null && counters != null)
+            counters.hit();
+        return copy;
+    }
+}
@@ -0,0 +1,37 @@
+package com.ecwid.test.deep_copy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of one deep copy, its duration is the time of the copy. Disabled unless settings of a recording
+ * enable {@code com.ecwid.deep_copy.Copy}, see {@link CopyMetrics}.
+ */
+@Name("com.ecwid.deep_copy.Copy")
+@Label("Deep Copy")
+@Category("Deep Copy")
+@Description("Deep copy of an object graph")
+final class CopyEvent extends Event {
+
+    @Label("Root Class")
+    Class<?> rootClass;
+
+    @Label("Objects")
+    @Description("Copied objects, arrays and collections included")
+    long objects;
+
+    @Label("Arrays")
+    long arrays;
+
+    @Label("Estimated Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Identity Hits")
+    @Description("References resolved to an already made copy")
+    long identityHits;
+}
@@ -0,0 +1,61 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Hand written copy of a class, used instead of the generic copy for instances of the class and its subclasses
+ * (or implementations, if the class is an interface). Handlers are registered by {@link CopyHandlers#register}
+ * or discovered by {@link java.util.ServiceLoader} as providers of {@code com.ecwid.test.deep_copy.CopyHandler}.
+ * <p>
+ * Handler copies the object itself and passes referenced objects which need deep copy to
+ * {@link Copier#copy(Object)}. Children are copied by the same copy, so shared and cyclic references are resolved
+ * like everywhere else. If children may refer back to the object, handler has to {@link Copier#register(Object)}
+ * its copy before it copies them. Immutable objects (see {@link ImmutableTypes}) and objects shared, skipped or
+ * copied shallowly by {@link CopyOptions} don't reach handlers.
+ * <pre>
+ * class ExecutorHandler implements CopyHandler&lt;ScheduledThreadPoolExecutor&gt; {
+ *     public Class&lt;ScheduledThreadPoolExecutor&gt; type() {
+ *         return ScheduledThreadPoolExecutor.class;
+ *     }
+ *
+ *     public ScheduledThreadPoolExecutor copy(ScheduledThreadPoolExecutor original, Copier copier) {
+ *         return new ScheduledThreadPoolExecutor(original.getCorePoolSize(), original.getThreadFactory());
+ *     }
+ * }
+ * </pre>
+ * @param <T> handled type
+ */
+public interface CopyHandler<T> {
+
+    /**
+     * @return class or interface which instances the handler copies
+     */
+    Class<T> type();
+
+    /**
+     * @param original object to copy, instance of {@link #type()}
+     * @param copier copies referenced objects
+     * @return copy of the object
+     */
+    T copy(T original, Copier copier);
+
+    /**
+     * Access of a handler to the copy it takes part in.
+     */
+    interface Copier {
+
+        /**
+         * Deep copy of an object referenced by the original, made by the running copy. Copy made before is returned
+         * for shared references.
+         * @param child referenced object, may be {@code null}
+         * @return copy of the object
+         * @param <V> object type
+         */
+        <V> V copy(V child);
+
+        /**
+         * Registers copy of the original before its children are copied, so references from children back to
+         * the original resolve to it.
+         * @param copy copy of the original, the same object the handler returns
+         */
+        void register(Object copy);
+    }
+}
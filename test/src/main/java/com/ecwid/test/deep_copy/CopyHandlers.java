@@ -0,0 +1,127 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link CopyHandler}s. Handlers provided through {@link ServiceLoader} by the class loader of
+ * this library are registered when the registry is first used, other class loaders can be scanned by
+ * {@link #load(ClassLoader)}.
+ * <p>
+ * Handler of a class is the one registered for the class itself, otherwise for its closest superclass,
+ * otherwise for the closest of its interfaces. Lookup is cached per class. Registration changes
+ * a version of the registry, cached lookups of an older version are resolved again, so handlers can be registered
+ * at any time.
+ * <p>
+ * Locks ({@code StampedLock}, {@code ReentrantLock}, {@code ReentrantReadWriteLock}) are copied as new unlocked
+ * locks by built-in handlers, conditions copied with a lock belong to its copy. Built-in handlers are replaced
+ * by handlers registered for the lock classes.
+ */
+public final class CopyHandlers {
+
+    private static final Map<Class<?>, CopyHandler<?>> registered = new ConcurrentHashMap<>();
+
+    private static volatile int version;
+
+    private record Lookup(int version, CopyHandler<?> handler) {
+    }
+
+    private static final ClassValue<Lookup> LOOKUPS = new ClassValue<>() {
+        @Override
+        protected Lookup computeValue(Class<?> type) {
+            int v = version;
+            return new Lookup(v, find(type));
+        }
+    };
+
+    static {
+        register(LockHandlers.all().toArray(new CopyHandler<?>[0]));
+        load(CopyHandlers.class.getClassLoader());
+    }
+
+    private CopyHandlers() {
+    }
+
+    /**
+     * Registers handlers, each replaces the handler registered for the same type before.
+     * @param handlers handlers to register
+     */
+    public static synchronized void register(CopyHandler<?>... handlers)
+    {
+        for (CopyHandler<?> handler : handlers) {
+            Class<?> type = handler.type();
+            if (type.isArray() || type.isPrimitive())
+                throw new IllegalArgumentException("Can't register handler of " + type);
+            registered.put(type, handler);
+        }
+        version++;
+    }
+
+    /**
+     * Removes handler registered for the type.
+     * @param type type passed to {@link #register(CopyHandler[])}
+     */
+    public static synchronized void unregister(Class<?> type)
+    {
+        if (registered.remove(type) != null)
+            version++;
+    }
+
+    /**
+     * Registers handlers provided by the class loader through {@link ServiceLoader}.
+     * @param loader class loader to scan
+     */
+    public static void load(ClassLoader loader)
+    {
+        for (CopyHandler<?> handler : ServiceLoader.load(CopyHandler.class, loader))
+            register(handler);
+    }
+
+    /**
+     * @param type runtime class of an object
+     * @return handler of the class, {@code null} if the class is copied as usual
+     */
+    @SuppressWarnings("unchecked")
+    static CopyHandler<Object> of(Class<?> type) {
+        Lookup lookup = LOOKUPS.get(type);
+        if (lookup.version() != version) {
+            LOOKUPS.remove(type);
+            lookup = LOOKUPS.get(type);
+        }
+        return (CopyHandler<Object>) lookup.handler();
+    }
+
+    private static CopyHandler<?> find(Class<?> type) {
+        if (registered.isEmpty())
+            return null;
+        for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+            CopyHandler<?> handler = registered.get(cl);
+            if (handler != null)
+                return handler;
+        }
+        Set<Class<?>> visited = new HashSet<>();
+        Queue<Class<?>> queue = new ArrayDeque<>();
+        for (Class<?> cl = type; cl != null; cl = cl.getSuperclass()) {
+            for (Class<?> iface : cl.getInterfaces()) {
+                if (visited.add(iface))
+                    queue.add(iface);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Class<?> iface = queue.poll();
+            CopyHandler<?> handler = registered.get(iface);
+            if (handler != null)
+                return handler;
+            for (Class<?> parent : iface.getInterfaces()) {
+                if (visited.add(parent))
+                    queue.add(parent);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,162 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Metrics of deep copies: per copy {@link CopyStats} for listeners and cumulative counters.
+ * <p>
+ * Copies are measured only when metrics are enabled ({@link #setEnabled(boolean)}), a listener is registered or
+ * a JFR recording enables {@link CopyEvent} ({@code com.ecwid.deep_copy.Copy}). Otherwise a copy checks a flag
+ * and whether the JFR event is enabled once, engine doesn't count anything. Measured copies are reported
+ * to JFR as {@link CopyEvent}, cumulative counters are reported periodically as {@link CopyStatisticsEvent}.
+ * <p>
+ * Copies made by {@link CopyUtils#deepCopy(Object)}, its variants with options, async, parallel and into existing
+ * graph, and by {@link CopySession} are measured. Snapshots ({@link SnapshotStore}) and stamps ({@link Stamper})
+ * are not. Cumulative counters per class keep the classes reachable until {@link #reset()}.
+ */
+public final class CopyMetrics {
+
+    /**
+     * Tells whether JFR records {@link CopyEvent}, so copies which aren't measured allocate no event.
+     */
+    private static final CopyEvent PROBE = new CopyEvent();
+
+    private static final List<Consumer<CopyStats>> listeners = new CopyOnWriteArrayList<>();
+    private static boolean enabled;
+    private static volatile boolean collecting;
+
+    private static final LongAdder calls = new LongAdder();
+    private static final LongAdder objects = new LongAdder();
+    private static final LongAdder arrays = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder identityHits = new LongAdder();
+    private static final LongAdder nanos = new LongAdder();
+    private static final Map<Class<?>, LongAdder> classes = new ConcurrentHashMap<>();
+    private static final Map<CopyStats.Strategy, LongAdder> strategies = new ConcurrentHashMap<>();
+
+    static {
+        FlightRecorder.addPeriodicEvent(CopyStatisticsEvent.class, CopyMetrics::emitStatistics);
+    }
+
+    private CopyMetrics() {
+    }
+
+    /**
+     * Enables or disables collection of cumulative counters when there are no listeners. Disabled by default.
+     * @param enabled {@code true} to measure every copy
+     */
+    public static synchronized void setEnabled(boolean enabled)
+    {
+        CopyMetrics.enabled = enabled;
+        collecting = enabled || !listeners.isEmpty();
+    }
+
+    /**
+     * Registers listener of copies. Listener is called on the thread which made the copy, after the copy is complete.
+     * Copies aborted by an exception are not reported.
+     * @param listener receives counters of each copy
+     */
+    public static synchronized void addListener(Consumer<CopyStats> listener)
+    {
+        listeners.add(listener);
+        collecting = true;
+    }
+
+    /**
+     * @param listener listener registered by {@link #addListener(Consumer)}
+     */
+    public static synchronized void removeListener(Consumer<CopyStats> listener)
+    {
+        listeners.remove(listener);
+        collecting = enabled || !listeners.isEmpty();
+    }
+
+    /**
+     * @return sum of counters of all measured copies since start or {@link #reset()}
+     */
+    public static CopyStats cumulative()
+    {
+        Map<Class<?>, Long> perClass = new HashMap<>();
+        classes.forEach((type, count) -> perClass.put(type, count.sum()));
+        Map<CopyStats.Strategy, Long> perStrategy = new EnumMap<>(CopyStats.Strategy.class);
+        strategies.forEach((strategy, count) -> perStrategy.put(strategy, count.sum()));
+        return new CopyStats(calls.sum(), objects.sum(), arrays.sum(), bytes.sum(), identityHits.sum(), nanos.sum(),
+                Collections.unmodifiableMap(perClass), Collections.unmodifiableMap(perStrategy));
+    }
+
+    /**
+     * Resets cumulative counters.
+     */
+    public static void reset()
+    {
+        calls.reset();
+        objects.reset();
+        arrays.reset();
+        bytes.reset();
+        identityHits.reset();
+        nanos.reset();
+        classes.clear();
+        strategies.clear();
+    }
+
+    /**
+     * Called when a copy starts.
+     * @return counters of the copy, {@code null} if it is not measured
+     */
+    static CopyCounters start() {
+        if (!collecting && !PROBE.isEnabled())
+            return null;
+        CopyEvent event = new CopyEvent();
+        event.begin();
+        return new CopyCounters(event);
+    }
+
+    /**
+     * Called when a measured copy is complete, reports it to listeners, cumulative counters and JFR.
+     * @param counters counters returned by {@link #start()}
+     * @param root root of the original graph
+     */
+    static void finish(CopyCounters counters, Object root) {
+        CopyStats stats = counters.stats(System.nanoTime() - counters.start);
+        CopyEvent event = counters.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.rootClass = root.getClass();
+            event.objects = stats.objects();
+            event.arrays = stats.arrays();
+            event.bytes = stats.bytes();
+            event.identityHits = stats.identityHits();
+            event.commit();
+        }
+        calls.increment();
+        objects.add(stats.objects());
+        arrays.add(stats.arrays());
+        bytes.add(stats.bytes());
+        identityHits.add(stats.identityHits());
+        nanos.add(stats.nanos());
+        stats.classes().forEach((type, count) -> classes.computeIfAbsent(type, t -> new LongAdder()).add(count));
+        stats.strategies().forEach((strategy, count) -> strategies.computeIfAbsent(strategy, s -> new LongAdder()).add(count));
+        for (Consumer<CopyStats> listener : listeners)
+            listener.accept(stats);
+    }
+
+    private static void emitStatistics() {
+        CopyStatisticsEvent event = new CopyStatisticsEvent();
+        event.calls = calls.sum();
+        event.objects = objects.sum();
+        event.arrays = arrays.sum();
+        event.bytes = bytes.sum();
+        event.identityHits = identityHits.sum();
+        event.commit();
+    }
+}
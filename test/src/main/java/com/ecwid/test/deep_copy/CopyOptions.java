@@ -0,0 +1,388 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Rules which limit how deep the graph is copied, see {@link CopyUtils#deepCopy(Object, CopyOptions)}.
+ * <p>
+ * Rules are matched against the runtime class of an object (class rules) or against a reference field of
+ * a class (field rules). The first matching rule in the order of registration decides the {@link Action}.
+ * Field rules take precedence over class rules of the field value. Class rules don't apply to immutable types
+ * (see {@link ImmutableTypes}), they are shared anyway.
+ * <p>
+ * Rules are resolved once per class and kept in per-class policy, so copy doesn't evaluate rules or predicates
+ * for each object or field. Options are immutable and supposed to be built once and reused.
+ * <p>
+ * Budget of the copy (number of objects, estimated bytes, time) protects from accidentally huge graphs:
+ * copy which exceeds it is aborted with {@link CopyBudgetExceededException}, see {@link CopyBudget}.
+ * <p>
+ * Expected size of the graph ({@link Builder#presize(GraphAnalysis)}) lets the copy allocate its identity map
+ * and work stack once instead of growing them, when many graphs of the same shape are copied.
+ * <pre>
+ * CopyOptions options = CopyOptions.builder()
+ *         .share(ExecutorService.class)
+ *         .skipField(Order.class, "cache")
+ *         .excludePackage("java.util.concurrent.locks")
+ *         .maxObjects(1_000_000)
+ *         .timeout(Duration.ofMillis(50))
+ *         .build();
+ * </pre>
+ */
+public final class CopyOptions {
+
+    /**
+     * What to do with an object instead of deep copy.
+     */
+    public enum Action {
+        /**
+         * Deep copy, default.
+         */
+        COPY,
+        /**
+         * Copy refers to the original object.
+         */
+        SHARE,
+        /**
+         * Copy has {@code null} instead of the object.
+         */
+        SKIP,
+        /**
+         * Copy refers to a new object with the same field values (or elements) as the original.
+         */
+        SHALLOW
+    }
+
+    static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final List<Rule<Class<?>>> classRules;
+    private final List<Rule<Field>> fieldRules;
+    final int maxDepth;
+    final long maxObjects;
+    final long maxBytes;
+    final long timeoutNanos;
+
+    /**
+     * Concurrent collections are always copied through their iterators, see {@link CollectionCopier#snapshot(Object)}.
+     */
+    final boolean concurrentSnapshots;
+
+    /**
+     * Expected number of copied objects, {@code 0} if unknown.
+     */
+    final int expectedObjects;
+
+    /**
+     * Expected largest number of pending entries of the copy, {@code 0} if unknown.
+     */
+    final int expectedPending;
+
+    /**
+     * Policies resolved so far. A map of the instance rather than a {@link ClassValue}: values of a class value
+     * are reachable from the class, and policies refer to the options, so every options instance would be kept
+     * as long as the classes it copied.
+     */
+    private final ConcurrentHashMap<Class<?>, ClassPolicy> policies = new ConcurrentHashMap<>();
+
+    private CopyOptions(Builder builder) {
+        this.classRules = List.copyOf(builder.classRules);
+        this.fieldRules = List.copyOf(builder.fieldRules);
+        this.maxDepth = builder.maxDepth;
+        this.maxObjects = builder.maxObjects;
+        this.maxBytes = builder.maxBytes;
+        this.timeoutNanos = builder.timeoutNanos;
+        this.concurrentSnapshots = builder.concurrentSnapshots;
+        this.expectedObjects = builder.expectedObjects;
+        this.expectedPending = builder.expectedPending;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return {@code true} if any limit of the budget is set
+     */
+    boolean hasBudget() {
+        return maxObjects != UNLIMITED || maxBytes != UNLIMITED || timeoutNanos != UNLIMITED;
+    }
+
+    /**
+     * @param type runtime class of an object
+     * @return resolved rules for the class
+     */
+    ClassPolicy policy(Class<?> type) {
+        ClassPolicy policy = policies.get(type);
+        return policy != null ? policy : policies.computeIfAbsent(type, ClassPolicy::new);
+    }
+
+    private record Rule<T>(Predicate<? super T> predicate, Action action) {
+    }
+
+    private static <T> Action match(List<Rule<T>> rules, T subject, Action otherwise) {
+        for (Rule<T> rule : rules) {
+            if (rule.predicate().test(subject))
+                return rule.action();
+        }
+        return otherwise;
+    }
+
+    /**
+     * Rules resolved for one class: action for its instances and actions for its reference fields,
+     * in the order of {@link CopyPlan} (or {@link RecordPlan} for records) fields.
+     * Field actions are {@code null} if every field is copied as usual.
+     */
+    final class ClassPolicy {
+
+        final Action action;
+        final Action[] objectFields;
+        final Action[] arrayFields;
+        final Action[] components;
+
+        /**
+         * Immutable fields with {@link Action#SKIP} rule, they are cleared after flat fields are copied.
+         */
+        final FieldAccessor[] skippedFlatFields;
+
+        private ClassPolicy(Class<?> type) {
+            this.action = type.isPrimitive() ? Action.COPY : match(classRules, type, Action.COPY);
+            if (fieldRules.isEmpty() || action != Action.COPY || type.isArray() || type.isPrimitive()
+                    || type.isInterface() || CollectionCopier.of(type) != null) {
+                objectFields = arrayFields = components = null;
+                skippedFlatFields = null;
+            } else if (type.isRecord()) {
+                objectFields = arrayFields = null;
+                components = actions(RecordPlan.of(type).components);
+                skippedFlatFields = null;
+            } else {
+                CopyPlan plan = CopyPlan.of(type);
+                objectFields = actions(plan.objectFields);
+                arrayFields = actions(plan.arrayFields);
+                components = null;
+                List<FieldAccessor> skipped = new ArrayList<>();
+                for (FieldAccessor field : plan.immutableFields) {
+                    if (match(fieldRules, field.field, Action.COPY) == Action.SKIP)
+                        skipped.add(field);
+                }
+                skippedFlatFields = skipped.isEmpty() ? null : skipped.toArray(new FieldAccessor[0]);
+            }
+        }
+
+        private Action[] actions(FieldAccessor[] fields) {
+            Action[] actions = new Action[fields.length];
+            boolean any = false;
+            for (int k = 0; k < fields.length; k++) {
+                actions[k] = fields[k].type.isPrimitive() ? Action.COPY : match(fieldRules, fields[k].field, Action.COPY);
+                any |= actions[k] != Action.COPY;
+            }
+            return any ? actions : null;
+        }
+    }
+
+    public static final class Builder {
+
+        private final List<Rule<Class<?>>> classRules = new ArrayList<>();
+        private final List<Rule<Field>> fieldRules = new ArrayList<>();
+        private int maxDepth = UNLIMITED_DEPTH;
+        private long maxObjects = UNLIMITED;
+        private long maxBytes = UNLIMITED;
+        private long timeoutNanos = UNLIMITED;
+        private boolean concurrentSnapshots;
+        private int expectedObjects;
+        private int expectedPending;
+
+        private Builder() {
+        }
+
+        /**
+         * Instances of the classes and their subclasses are shared with the original.
+         * @param types classes or interfaces
+         * @return this builder
+         */
+        public Builder share(Class<?>... types) {
+            return classes(types, Action.SHARE);
+        }
+
+        /**
+         * Instances of the classes and their subclasses are replaced with {@code null}.
+         * @param types classes or interfaces
+         * @return this builder
+         */
+        public Builder skip(Class<?>... types) {
+            return classes(types, Action.SKIP);
+        }
+
+        /**
+         * Instances of the classes and their subclasses are copied shallowly.
+         * @param types classes or interfaces
+         * @return this builder
+         */
+        public Builder shallow(Class<?>... types) {
+            return classes(types, Action.SHALLOW);
+        }
+
+        /**
+         * Value of the field is shared with the original.
+         * @param type class declaring the field
+         * @param name name of the field
+         * @return this builder
+         */
+        public Builder shareField(Class<?> type, String name) {
+            return field(type, name, Action.SHARE);
+        }
+
+        /**
+         * Field is {@code null} in the copy.
+         * @param type class declaring the field
+         * @param name name of the field
+         * @return this builder
+         */
+        public Builder skipField(Class<?> type, String name) {
+            return field(type, name, Action.SKIP);
+        }
+
+        /**
+         * Value of the field is copied shallowly.
+         * @param type class declaring the field
+         * @param name name of the field
+         * @return this builder
+         */
+        public Builder shallowField(Class<?> type, String name) {
+            return field(type, name, Action.SHALLOW);
+        }
+
+        /**
+         * @param predicate predicate on the runtime class of an object
+         * @param action what to do with instances of matching classes
+         * @return this builder
+         */
+        public Builder classRule(Predicate<Class<?>> predicate, Action action) {
+            classRules.add(new Rule<>(Objects.requireNonNull(predicate), Objects.requireNonNull(action)));
+            return this;
+        }
+
+        /**
+         * @param predicate predicate on a reference field
+         * @param action what to do with values of matching fields
+         * @return this builder
+         */
+        public Builder fieldRule(Predicate<Field> predicate, Action action) {
+            fieldRules.add(new Rule<>(Objects.requireNonNull(predicate), Objects.requireNonNull(action)));
+            return this;
+        }
+
+        /**
+         * Instances of classes of the package and its subpackages are shared with the original.
+         * @param packageName name of the package, like {@code java.util.concurrent.locks}
+         * @return this builder
+         */
+        public Builder excludePackage(String packageName) {
+            String prefix = packageName + ".";
+            return classRule(type -> type.getPackageName().equals(packageName)
+                    || type.getPackageName().startsWith(prefix), Action.SHARE);
+        }
+
+        /**
+         * Objects found deeper than {@code maxDepth} references from the root are shared with the original.
+         * Root is at depth 0. Arrays stored in fields are copied together with their owner.
+         * @param maxDepth maximum depth of copied objects
+         * @return this builder
+         */
+        public Builder maxDepth(int maxDepth) {
+            if (maxDepth < 0)
+                throw new IllegalArgumentException("Negative depth " + maxDepth);
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * Copy is aborted when it has to make more than {@code maxObjects} copies.
+         * Shared objects (immutable or shared by rules) are not counted.
+         * @param maxObjects maximum number of copied objects
+         * @return this builder
+         */
+        public Builder maxObjects(long maxObjects) {
+            if (maxObjects < 0)
+                throw new IllegalArgumentException("Negative number of objects " + maxObjects);
+            this.maxObjects = maxObjects;
+            return this;
+        }
+
+        /**
+         * Copy is aborted when estimated size of copied objects exceeds {@code maxBytes}.
+         * Size is estimated from fields and lengths of the originals, see {@link CopyBudget}.
+         * @param maxBytes maximum estimated size of the copy
+         * @return this builder
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes < 0)
+                throw new IllegalArgumentException("Negative number of bytes " + maxBytes);
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Copy is aborted when it takes longer than {@code timeout}, time is checked periodically.
+         * @param timeout maximum duration of the copy
+         * @return this builder
+         */
+        public Builder timeout(Duration timeout) {
+            if (timeout.isNegative())
+                throw new IllegalArgumentException("Negative timeout " + timeout);
+            this.timeoutNanos = timeout.compareTo(Duration.ofNanos(UNLIMITED)) >= 0 ? UNLIMITED : timeout.toNanos();
+            return this;
+        }
+
+        /**
+         * Concurrent collections ({@link java.util.concurrent.ConcurrentHashMap},
+         * {@link java.util.concurrent.ConcurrentSkipListMap} and others handled by {@link CollectionCopier}) are
+         * always copied through their weakly consistent iterators, even if their keys are mutable. Their internal
+         * nodes are never read while other threads modify them, writers are not blocked.
+         * Keys are added to the copy when their copies are complete, a key which refers back to its map
+         * may be added before.
+         * @return this builder
+         */
+        public Builder concurrentSnapshots() {
+            this.concurrentSnapshots = true;
+            return this;
+        }
+
+        /**
+         * Copies are presized for graphs like the analyzed one. Too small expectation only means the copy grows
+         * its structures like without it, too large one wastes memory.
+         * @param analysis analysis of a typical graph, see {@link CopyUtils#analyze(Object)}
+         * @return this builder
+         */
+        public Builder presize(GraphAnalysis analysis) {
+            this.expectedObjects = (int) Math.min(analysis.objects(), Integer.MAX_VALUE);
+            this.expectedPending = analysis.maxPending();
+            return this;
+        }
+
+        public CopyOptions build() {
+            return new CopyOptions(this);
+        }
+
+        private Builder classes(Class<?>[] types, Action action) {
+            for (Class<?> type : types)
+                classRule(type::isAssignableFrom, action);
+            return this;
+        }
+
+        private Builder field(Class<?> type, String name, Action action) {
+            Field field;
+            try {
+                field = type.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("There is no field " + name + " in " + type, e);
+            }
+            return fieldRule(field::equals, action);
+        }
+    }
+}
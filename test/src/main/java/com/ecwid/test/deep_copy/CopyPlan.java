@@ -0,0 +1,256 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-class description of how an instance is copied. Built once per class and shared by all
+ * {@link CopyUtils#deepCopy(Object)} calls, so reflection ({@link Class#getDeclaredFields()},
+ * {@link Field#setAccessible(boolean)}) is paid only on the first copy of a class.
+ * <p>
+ * Non-static fields of the class and all its superclasses are flattened and split into groups:
+ * <ul>
+ *     <li>primitive fields - copied by value without boxing</li>
+ *     <li>immutable fields (like {@link String}, see {@link ImmutableTypes}) - reference is shared</li>
+ *     <li>object fields - deep copied</li>
+ *     <li>array fields - deep copied</li>
+ * </ul>
+ * When compiled copiers are enabled (see {@link CopyUtils#setCompiledCopiers(boolean)}), non-final primitive and
+ * immutable fields of a hot class are copied by a {@link CompiledCopier} generated after {@link #COMPILE_THRESHOLD}
+ * copies. Object and array fields are not compiled: their values are copied or scheduled by {@link CopyEngine}.
+ * <p>
+ * Plans of classes which can be found in the graph are resolved ahead of time, see {@link #prepare(Class)}.
+ */
+final class CopyPlan {
+
+    private static final FieldAccessor[] NO_FIELDS = new FieldAccessor[0];
+
+    /**
+     * Number of copies after which class is considered hot and its copier is compiled.
+     */
+    static final int COMPILE_THRESHOLD = 256;
+
+    private static final ClassValue<CopyPlan> PLANS = new ClassValue<>() {
+        @Override
+        protected CopyPlan computeValue(Class<?> type) {
+            return new CopyPlan(type);
+        }
+    };
+
+    private static final ClassValue<Boolean> PREPARED = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            prepareReachable(type);
+            return Boolean.TRUE;
+        }
+    };
+
+    final Class<?> type;
+    final FieldAccessor[] primitiveFields;
+    final FieldAccessor[] immutableFields;
+    final FieldAccessor[] objectFields;
+    final FieldAccessor[] arrayFields;
+
+    private int copyCount; // racy on purpose, it is only a hint when to compile
+    private volatile CompiledCopier compiled;
+
+    private CopyPlan(Class<?> type) {
+        this.type = type;
+        List<FieldAccessor> primitives = new ArrayList<>();
+        List<FieldAccessor> immutables = new ArrayList<>();
+        List<FieldAccessor> objects = new ArrayList<>();
+        List<FieldAccessor> arrays = new ArrayList<>();
+        Class<?> cl = type;
+        while (cl != null) {
+            for (Field field : cl.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()))
+                    continue;
+                FieldAccessor accessor = new FieldAccessor(field);
+                Class<?> fieldType = field.getType();
+                if (fieldType.isPrimitive()) {
+                    primitives.add(accessor);
+                } else if (ImmutableTypes.isImmutableFieldType(fieldType)) {
+                    immutables.add(accessor);
+                } else if (fieldType.isArray()) {
+                    arrays.add(accessor);
+                } else {
+                    objects.add(accessor);
+                }
+            }
+            cl = cl.getSuperclass();
+        }
+        this.primitiveFields = primitives.toArray(NO_FIELDS);
+        this.immutableFields = immutables.toArray(NO_FIELDS);
+        this.objectFields = objects.toArray(NO_FIELDS);
+        this.arrayFields = arrays.toArray(NO_FIELDS);
+    }
+
+    /**
+     * @param type class of the objects to copy
+     * @return cached plan for the class, built on first request
+     */
+    static CopyPlan of(Class<?> type) {
+        return PLANS.get(type);
+    }
+
+    /**
+     * Resolves plans (and {@link Instantiator}s) of the class and of classes statically reachable from it: declared
+     * types of fields which are final (records included), component types of arrays and every permitted subclass
+     * of sealed types. So copy of a sealed hierarchy doesn't discover its classes one by one on the hot path.
+     * Done once per class of the graph root.
+     * @param type class of the graph root
+     */
+    static void prepare(Class<?> type) {
+        PREPARED.get(type);
+    }
+
+    private static void prepareReachable(Class<?> root) {
+        Set<Class<?>> visited = new HashSet<>();
+        ArrayDeque<Class<?>> queue = new ArrayDeque<>();
+        visited.add(root);
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Class<?> type = queue.poll();
+            try {
+                for (Class<?> next : prepareClass(type)) {
+                    if (visited.add(next))
+                        queue.add(next);
+                }
+            } catch (RuntimeException e) {
+                // class can't be copied reflectively, it fails later if it is really found in the graph
+            }
+        }
+    }
+
+    /**
+     * @return types which instances can be found in the fields or elements of the type
+     */
+    private static List<Class<?>> prepareClass(Class<?> type) {
+        List<Class<?>> next = new ArrayList<>();
+        if (type.isArray()) {
+            addKnown(next, type.componentType());
+        } else if (type.isSealed()) {
+            for (Class<?> permitted : type.getPermittedSubclasses())
+                addKnown(next, permitted);
+        }
+        if (type.isArray() || type.isInterface() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())
+                || ImmutableTypes.isImmutable(type) || CollectionCopier.of(type) != null)
+            return next;
+        if (type.isRecord()) {
+            RecordPlan plan = RecordPlan.of(type);
+            for (int k = 0; k < plan.components.length; k++) {
+                if (plan.deep[k])
+                    addKnown(next, plan.components[k].type);
+            }
+            return next;
+        }
+        CopyPlan plan = of(type);
+        Instantiator.of(type);
+        for (FieldAccessor field : plan.objectFields)
+            addKnown(next, field.type);
+        for (FieldAccessor field : plan.arrayFields)
+            addKnown(next, field.type);
+        return next;
+    }
+
+    /**
+     * Adds the type, if it is the class of the value or the value is of one of its permitted subclasses.
+     */
+    private static void addKnown(List<Class<?>> next, Class<?> type) {
+        if (type.isArray() || Modifier.isFinal(type.getModifiers()) || type.isSealed())
+            next.add(type);
+    }
+
+    /**
+     * Copies all fields which do not require deep copy: primitives and immutable references.
+     * @param src original object
+     * @param dst copy
+     */
+    void copyFlatFields(Object src, Object dst) {
+        if (CopyUtils.compiledCopiers) {
+            CompiledCopier copier = compiled;
+            if (copier != null) {
+                copier.copy(src, dst);
+                return;
+            }
+            if (++copyCount >= COMPILE_THRESHOLD) {
+                compiled = compile();
+            }
+        }
+        copyFlatFieldsReflective(src, dst);
+    }
+
+    /**
+     * Copies fields which do not require deep copy into a reused copy, writing only those which differ.
+     * @param src original object
+     * @param dst copy made before
+     */
+    void patchFlatFields(Object src, Object dst) {
+        for (FieldAccessor f : primitiveFields)
+            f.patch(src, dst);
+        for (FieldAccessor f : immutableFields)
+            f.patch(src, dst);
+    }
+
+    /**
+     * @return {@code true} if a compiled copier copies some fields of the class
+     */
+    boolean isCompiled() {
+        CompiledCopier copier = compiled;
+        return copier != null && !(copier instanceof CompositeCopier composite && composite.copiers().length == 0);
+    }
+
+    private void copyFlatFieldsReflective(Object src, Object dst) {
+        for (FieldAccessor f : primitiveFields)
+            f.copy(src, dst);
+        for (FieldAccessor f : immutableFields)
+            f.copy(src, dst);
+    }
+
+    /**
+     * Generates copiers for each class in the hierarchy. Fields which could not be compiled
+     * (final fields, classes we can't define hidden class for) are still copied reflectively.
+     */
+    private CompiledCopier compile() {
+        Map<Class<?>, List<FieldAccessor>> byClass = new LinkedHashMap<>();
+        List<FieldAccessor> reflective = new ArrayList<>();
+        for (FieldAccessor[] group : new FieldAccessor[][]{primitiveFields, immutableFields}) {
+            for (FieldAccessor f : group) {
+                if (CopierCompiler.isCompilable(f.field))
+                    byClass.computeIfAbsent(f.field.getDeclaringClass(), x -> new ArrayList<>()).add(f);
+                else
+                    reflective.add(f);
+            }
+        }
+        List<CompiledCopier> copiers = new ArrayList<>();
+        for (Map.Entry<Class<?>, List<FieldAccessor>> e : byClass.entrySet()) {
+            List<Field> fields = e.getValue().stream().map(f -> f.field).toList();
+            CompiledCopier copier = CopierCompiler.compile(e.getKey(), fields);
+            if (copier != null)
+                copiers.add(copier);
+            else
+                reflective.addAll(e.getValue());
+        }
+        if (copiers.size() == 1 && reflective.isEmpty())
+            return copiers.get(0);
+        return new CompositeCopier(copiers.toArray(new CompiledCopier[0]), reflective.toArray(NO_FIELDS));
+    }
+
+    private record CompositeCopier(CompiledCopier[] copiers, FieldAccessor[] reflective) implements CompiledCopier {
+
+        @Override
+        public void copy(Object src, Object dst) {
+            for (CompiledCopier copier : copiers)
+                copier.copy(src, dst);
+            for (FieldAccessor f : reflective)
+                f.copy(src, dst);
+        }
+    }
+}
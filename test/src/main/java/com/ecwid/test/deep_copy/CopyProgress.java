@@ -0,0 +1,11 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Progress of a running copy, see {@link CopyUtils#deepCopyAsync(Object, CopyOptions, java.util.concurrent.Executor,
+ * java.util.function.Consumer)}.
+ * @param objects number of objects copied so far
+ * @param bytes estimated size of objects copied so far
+ * @param pending number of references scheduled but not copied yet, depth of the traversal queue
+ */
+public record CopyProgress(long objects, long bytes, int pending) {
+}
@@ -0,0 +1,77 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Deep copy of an object which is kept up to date with the original.
+ * <p>
+ * Session remembers which copy was made for each original object. {@link #refresh()} visits the original graph
+ * again and reuses those copies: fields are compared with the copy and only changed ones are written, collections
+ * with the same elements are left as is, and only objects which appeared in the graph since the last copy are
+ * allocated.
+ * Copy is updated in place, so references to its objects kept by the caller see the new state. Objects which
+ * are no longer reachable from the original are dropped from the session.
+ * <p>
+ * Copy is the snapshot the original is compared with, so it must not be modified by the caller.
+ * Session is not thread safe, the original must not be modified during {@link #refresh()}.
+ * @param <T> type of the original
+ */
+public final class CopySession<T> {
+
+    private final T original;
+    private T copy;
+
+    /**
+     * Copies made by the last copy, original to copy.
+     */
+    private IdentityCopyMap copies = new IdentityCopyMap();
+
+    /**
+     * Table for the next refresh, kept to avoid allocation of a new table each time.
+     */
+    private IdentityCopyMap spare = new IdentityCopyMap();
+
+    /**
+     * Makes the first copy of the original.
+     * @param original object to copy
+     */
+    public CopySession(T original) {
+        this.original = original;
+        this.copy = CopyUtils.deepCopyInternal(original, copies);
+    }
+
+    /**
+     * @return original object of the session
+     */
+    public T original() {
+        return original;
+    }
+
+    /**
+     * @return copy made by the last refresh or by the constructor
+     */
+    public T copy() {
+        return copy;
+    }
+
+    /**
+     * @return number of objects in the copy, immutable objects shared with the original are not counted
+     */
+    public int size() {
+        return copies.size();
+    }
+
+    /**
+     * Updates the copy with the current state of the original.
+     * @return updated copy, the same object as returned by {@link #copy()} before
+     */
+    public T refresh() {
+        if (original == null || ImmutableTypes.isImmutable(original.getClass()))
+            return copy;
+        IdentityCopyMap next = spare;
+        @SuppressWarnings("unchecked") T r = (T) new CopyEngine(next).refresh(original, copy, copies);
+        copies.clear();
+        spare = copies;
+        copies = next;
+        copy = r;
+        return r;
+    }
+}
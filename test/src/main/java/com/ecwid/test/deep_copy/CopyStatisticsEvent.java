@@ -0,0 +1,38 @@
+package com.ecwid.test.deep_copy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Periodic JFR event with cumulative counters of {@link CopyMetrics}.
+ */
+@Name("com.ecwid.deep_copy.CopyStatistics")
+@Label("Deep Copy Statistics")
+@Category("Deep Copy")
+@Description("Cumulative counters of measured deep copies")
+@Period("1 s")
+@StackTrace(false)
+final class CopyStatisticsEvent extends Event {
+
+    @Label("Copies")
+    long calls;
+
+    @Label("Objects")
+    long objects;
+
+    @Label("Arrays")
+    long arrays;
+
+    @Label("Estimated Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Identity Hits")
+    long identityHits;
+}
@@ -0,0 +1,61 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Map;
+
+/**
+ * Counters of one copy or cumulative counters of all copies measured so far, see {@link CopyMetrics}.
+ * @param calls number of copies, {@code 1} for a single copy
+ * @param objects number of copied objects, arrays and collections included
+ * @param arrays number of copied arrays
+ * @param bytes estimated size of the copies, see {@link CopyBudget}
+ * @param identityHits number of references resolved to an already made copy: shared and cyclic references
+ * @param nanos time spent copying
+ * @param classes number of copied objects per class
+ * @param strategies number of copied objects per way they were instantiated
+ */
+public record CopyStats(long calls, long objects, long arrays, long bytes, long identityHits, long nanos,
+                        Map<Class<?>, Long> classes, Map<CopyStats.Strategy, Long> strategies) {
+
+    /**
+     * How a copy was instantiated, see {@link Instantiator}.
+     */
+    public enum Strategy {
+        /**
+         * Allocated without running constructors of the class.
+         */
+        ALLOCATION,
+        /**
+         * Default constructor of the class.
+         */
+        DEFAULT_CONSTRUCTOR,
+        /**
+         * Constructor with the shortest list of parameters, called with default values.
+         */
+        CONSTRUCTOR,
+        /**
+         * Public {@code clone()} of the original.
+         */
+        CLONE,
+        /**
+         * Canonical constructor of a record.
+         */
+        CANONICAL_CONSTRUCTOR,
+        /**
+         * Collection rebuilt through its public API by {@link CollectionCopier}.
+         */
+        COLLECTION,
+        /**
+         * New array.
+         */
+        ARRAY,
+        /**
+         * {@link CopyHandler} registered for the class.
+         */
+        HANDLER,
+        /**
+         * Object of the target graph overwritten in place, see {@link CopyUtils#deepCopyInto(Object, Object)}
+         * and {@link CopySession}.
+         */
+        REUSED
+    }
+}
@@ -0,0 +1,59 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Map;
+
+/**
+ * Mapping of original objects (by reference) to their copies used by {@link CopyEngine}.
+ */
+interface CopyTable {
+
+    /**
+     * @param original original object
+     * @return copy of the object or {@code null} if it is not copied yet
+     */
+    Object get(Object original);
+
+    /**
+     * Looks the copy up. If there is no copy yet, the caller is expected to create it
+     * and to register it with {@link #putReserved(Object, Object)} right away.
+     * Implementations may use it to register the copy without a second lookup.
+     * @param original original object
+     * @return copy of the object or {@code null} if it is not copied yet
+     */
+    Object getOrReserve(Object original);
+
+    /**
+     * Registers copy of the object after {@link #getOrReserve(Object)}, unless some copy is already registered
+     * (by another thread in case of parallel copy).
+     * @param original original object
+     * @param copy copy of the object
+     * @return registered copy, it is {@code copy} unless another copy was registered before
+     */
+    Object putReserved(Object original, Object copy);
+
+    /**
+     * @param copies map to adapt, supposed to compare keys by reference like {@link java.util.IdentityHashMap}
+     * @return table backed by the map
+     */
+    static CopyTable of(Map<Object, Object> copies) {
+        if (copies instanceof IdentityCopyMap table)
+            return table;
+        return new CopyTable() {
+            @Override
+            public Object get(Object original) {
+                return copies.get(original);
+            }
+
+            @Override
+            public Object getOrReserve(Object original) {
+                return copies.get(original);
+            }
+
+            @Override
+            public Object putReserved(Object original, Object copy) {
+                Object existing = copies.putIfAbsent(original, copy);
+                return existing != null ? existing : copy;
+            }
+        };
+    }
+}
@@ -2,6 +2,9 @@ package com.ecwid.test.deep_copy;
 
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 
 /**
@@ -11,237 +14,250 @@ import java.util.function.Consumer;
  * --add-opens=java.base/java.util=ALL-UNNAMED
  * --add-opens=java.base/java.util.concurrent.atomic=ALL-UNNAMED
  *
+ * Common collections ({@link ArrayList}, {@link HashMap}, {@link java.util.concurrent.ConcurrentHashMap} etc.)
+ * are rebuilt through their public API by {@link CollectionCopier} and don't need these parameters.
  */
 public class CopyUtils {
 
+    static volatile boolean compiledCopiers;
+
+    /**
+     * Class loader of lazy copy proxies of the interface: loader of the interface, if it sees {@link LazyCopy},
+     * otherwise a loader which sees both.
+     */
+    private static final ClassValue<ClassLoader> PROXY_LOADERS = new ClassValue<>() {
+        @Override
+        protected ClassLoader computeValue(Class<?> iface) {
+            ClassLoader loader = iface.getClassLoader();
+            if (loader == null)
+                return LazyCopy.class.getClassLoader();
+            try {
+                if (Class.forName(LazyCopy.class.getName(), false, loader) == LazyCopy.class)
+                    return loader;
+            } catch (ClassNotFoundException e) {
+                // LazyCopy is loaded by an unrelated loader
+            }
+            return new LazyCopyLoader(loader);
+        }
+    };
+
+    /**
+     * Enables or disables compiled copiers. When enabled, a specialized {@link CompiledCopier} is generated
+     * at runtime for each hot class, see {@link CopyPlan}. Compiled copiers copy only non-final primitive and
+     * immutable fields, other fields are copied as without them. Classes which can't be compiled (hidden classes,
+     * classes of other modules) are copied reflectively, see {@link #isCompiled(Class)}.
+     * Disabled by default.
+     * @param enabled {@code true} to use compiled copiers
+     */
+    public static void setCompiledCopiers(boolean enabled)
+    {
+        compiledCopiers = enabled;
+    }
+
+    /**
+     * @param type class of copied objects
+     * @return {@code true} if some fields of the class are copied by a compiled copier, {@code false} until
+     * the class is hot and for classes which can't be compiled, see {@link #setCompiledCopiers(boolean)}
+     */
+    public static boolean isCompiled(Class<?> type)
+    {
+        return CopyPlan.of(type).isCompiled();
+    }
+
     /**
      * Deep copy object regardless of fields visibility.
+     * Scratch structures of the copy are taken from a pool shared by all threads, see {@link CopyContext}.
      * @param obj object to copy
      * @return deep copy of the object
      * @param <T> object type
      */
     public static <T> T deepCopy(T obj)
     {
-        return deepCopyInternal(obj, new IdentityHashMap<>());
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return obj;
+        try (CopyContext context = CopyContext.acquire()) {
+            return context.deepCopy(obj);
+        }
     }
 
     /**
-     * Deep copy object without recursion (recursion will not work on LinkedList for example).
+     * Deep copy object, some parts of the graph are shared, skipped or copied shallowly according to the options.
+     * Can be used to avoid copying of caches, loggers, executors and similar objects.
      * @param obj object to copy
-     * @param copies map of original object (by reference) to copies to avoid cycles
-     * @return deep copy
-     * @param <T> type of the object
+     * @param options rules of the copy, see {@link CopyOptions}
+     * @return deep copy of the object
+     * @param <T> object type
+     * @throws CopyBudgetExceededException if the copy exceeds the budget of the options
      */
-    public static <T> T deepCopyInternal(T obj, Map<Object, Object> copies)
+    public static <T> T deepCopy(T obj, CopyOptions options)
     {
-        Stack<CopyTask> tasks = new Stack<>();
-        tasks.push(new CopyTask(obj, null));
-        Map<Class<?>, Integer> copyCount = new HashMap<>();
-        while (!tasks.isEmpty())
-        {
-            CopyTask t = tasks.pop();
-            int count = copyCount.computeIfAbsent(t.original.getClass(), x -> 0); copyCount.put(t.original.getClass(), ++count);
-            Object copy = deepCopyInternal0(t.original, copies, tasks);
-            t.propagate(copy);
-        }
-        System.out.println(copyCount);
-        @SuppressWarnings("unchecked") T r = (T) copies.get(obj);
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return obj;
+        @SuppressWarnings("unchecked") T r = (T) new CopyEngine(new IdentityCopyMap(options.expectedObjects), options).copy(obj);
         return r;
     }
 
     /**
-     * Attempts to deep copy object. See {@link #construct(Class, boolean, boolean, Object)}}
-     * to understand how deep copies of fields are instantiated. Throws {@link RuntimeException} in case failure.
-     *
-     * @param obj Object to copy
-     * @param copies map between original values and copied. Used to avoid circular dependencies.
-     * @return deep copy of the object
-     * @param <T> type of the object
+     * Walks the graph like {@link #deepCopy(Object)} does, but makes no copies. Reports what the copy would make:
+     * objects and estimated sizes per class, depth, shared and cyclic references, largest arrays.
+     * The analysis can presize copies of similar graphs, see {@link CopyOptions.Builder#presize(GraphAnalysis)}.
+     * @param obj object to analyze
+     * @return analysis of the graph, empty if the object is {@code null} or immutable
      */
-    private static <T> T deepCopyInternal0(T obj, Map<Object, Object> copies, Stack<CopyTask> tasks)
+    public static GraphAnalysis analyze(Object obj)
     {
-        Objects.requireNonNull(obj);
-
-        @SuppressWarnings("unchecked") Class<T> clazz = (Class<T>) obj.getClass();
-
-        if (obj instanceof Cloneable)
-        {
-            System.err.println("Class " + clazz + " implements Cloneable. You may want to use clone() method.");
-        }
-
-        T copy = construct(clazz, true, true, obj);
-
-        Class<?> cl = clazz;
-        while (cl != null) {
-
-            Field[] fields = cl.getDeclaredFields();
-            for (Field field : fields) {
-                try {
-                    int modifiers = field.getModifiers();
-                    if (!Modifier.isStatic(modifiers)) {
-                        field.setAccessible(true);
-                        Class<?> type = field.getType();
-                        if (type.isPrimitive() || type == String.class) {
-                            field.set(copy, field.get(obj));
-                        } else if (!type.isArray()) {
-                            Object fieldValue = field.get(obj);
-                            setCachedOrCopy(fieldValue, x -> {
-                                try {
-                                    field.set(copy, x);
-                                } catch (IllegalAccessException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            }, copies, tasks);
-                        } else {
-                            Class<?> componentType = type.componentType();
-                            if (!componentType.isPrimitive()) {
-                                Object[] fieldValue = (Object[]) field.get(obj);
-                                if (fieldValue != null) {
-                                    int length = fieldValue.length;
-                                    Object[] arrayValueCopy = (Object[]) Array.newInstance(componentType, length);
-                                    for (int k = 0; k < length; k++) {
-                                        Object arrayElement = fieldValue[k];
-                                        final int k_ = k;
-                                        setCachedOrCopy(arrayElement, x -> arrayValueCopy[k_] = x, copies, tasks);
-                                    }
-                                    field.set(copy, arrayValueCopy);
-                                }
-                                else
-                                {
-                                    field.set(copy, null);
-                                }
-                            } else {
-                                Object primitiveArrayCopy = copyPrimitiveArray(field.get(obj), componentType);
-                                field.set(copy, primitiveArrayCopy);
-                            }
-                        }
-                    }
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            cl = cl.getSuperclass();
-        }
-
-        copies.put(obj, copy);
-        return copy;
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return new GraphAnalysis(0, 0, 0, 0, 0, 0, Map.of(), List.of());
+        CopyPlan.prepare(obj.getClass());
+        return new GraphAnalyzer().analyze(obj);
     }
 
     /**
-     * Used to avoid circular dependencies
-     *
-     * @param fieldValue value to deep-copy
-     * @param setter     set calculated deep copy
-     * @param copies     mapping of original values to copied
-     * @param tasks      task stack to avoid deep recursion
+     * Deep copy object on the executor. Copy stops as soon as the returned future is completed by the caller:
+     * cancelled ({@link CompletableFuture#cancel(boolean)}), timed out ({@link CompletableFuture#orTimeout})
+     * and so on. Cancellation is checked every {@value CopyBudget#CHECK_INTERVAL} copied objects.
+     * Budget of the options aborts the copy like in {@link #deepCopy(Object, CopyOptions)}, the future is completed
+     * with {@link CopyBudgetExceededException} then.
+     * @param obj object to copy, it must not be modified until the copy is complete
+     * @param options rules and budget of the copy, may be empty
+     * @param executor executor to run the copy on
+     * @param progress receives progress of the copy periodically and once when it is complete, may be {@code null}
+     * @return future of the deep copy
+     * @param <T> object type
      */
-    private static void setCachedOrCopy(Object fieldValue, Consumer<Object> setter, Map<Object, Object> copies, Stack<CopyTask> tasks) throws IllegalAccessException {
-
-        Object cached = null;
-        if (fieldValue != null) {
-            cached = copies.get(fieldValue);
-            if (cached == null) {
-                CopyTask copyTask = new CopyTask(fieldValue, setter);
-                tasks.push(copyTask);
+    public static <T> CompletableFuture<T> deepCopyAsync(T obj, CopyOptions options, Executor executor,
+                                                         Consumer<CopyProgress> progress)
+    {
+        Objects.requireNonNull(options);
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return CompletableFuture.completedFuture(obj);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable copy = () -> {
+            if (future.isDone())
                 return;
+            try {
+                CopyBudget budget = new CopyBudget(options, future::isDone, progress);
+                @SuppressWarnings("unchecked") T r = (T) new CopyEngine(new IdentityCopyMap(options.expectedObjects), options, budget).copy(obj);
+                if (progress != null)
+                    progress.accept(budget.progress(0));
+                future.complete(r);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
             }
+        };
+        try {
+            executor.execute(copy);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
         }
-        setter.accept(cached);
+        return future;
     }
 
     /**
-     * Method tries to find default constructor and instantiate Class.
-     * If constructor not found or no public constructor, will try non-public default constructor based on {@code allowNonPublicConstructor}.
-     * If still not found - use {@link Cloneable}, if presented.
-     * If previous didn't work, pick up first constructor with the shortest list of parameters and instantiate with default values. See {@link #getDefaultConstructorArgument}
-     *
-     * Note, it may fail, if constructor does validations or anything other than assignment operations on arguments.
-     *
-     * @param clazz Class to instantiate
-     * @param allowNonPublicConstructor if we can use non-public constructors
-     * @param useNonDefaultConstructor if we can use non-default constructors
-     * @param obj instance of Object we are trying to construct. Will be used to clone, if no default constructor found.
-     * @return instance of Class. No guaranties of how class instantiated.
-     * @param <T> type of the Class
+     * Deep copy object without recursion (recursion will not work on LinkedList for example).
+     * See {@link CopyEngine} for details of the traversal.
+     * @param obj object to copy
+     * @param copies map of original object (by reference) to copies to avoid cycles.
+     *               {@link IdentityCopyMap} is used directly, other maps are accessed through {@link Map} methods.
+     * @return deep copy
+     * @param <T> type of the object
      */
-    private static <T> T construct(Class<T> clazz, boolean allowNonPublicConstructor, boolean useNonDefaultConstructor, T obj) {
-
-        Constructor<T> defaultConstructor = getDefaultConstructor(clazz, allowNonPublicConstructor, useNonDefaultConstructor);
-        if (defaultConstructor != null) {
-            try {
-                return defaultConstructor.newInstance();
-            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    public static <T> T deepCopyInternal(T obj, Map<Object, Object> copies)
+    {
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return obj;
+        @SuppressWarnings("unchecked") T r = (T) new CopyEngine(CopyTable.of(copies)).copy(obj);
+        return r;
+    }
 
-        // Use Cloneable if available
-        if (clazz.isInstance(Cloneable.class)) {
-            try {
-                @SuppressWarnings("unchecked") T r = (T) clazz.getMethod("clone").invoke(obj);
-                return r;
-            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    /**
+     * Deep copy object using several threads. Result is the same as of {@link #deepCopy(Object)}:
+     * shared and cyclic references are copied exactly once. Small graphs are copied by the calling thread,
+     * work is split only when traversal has a lot of pending objects, see {@link ParallelCopier}.
+     * @param obj object to copy
+     * @param pool pool to run the copy on
+     * @return deep copy of the object
+     * @param <T> object type
+     */
+    public static <T> T deepCopyParallel(T obj, ForkJoinPool pool)
+    {
+        if (obj == null || ImmutableTypes.isImmutable(obj.getClass()))
+            return obj;
+        @SuppressWarnings("unchecked") T r = (T) new ParallelCopier(pool).copy(obj);
+        return r;
+    }
 
-        // Use any constructor with the smallest signature 
-        Constructor<?>[] constructors = clazz.getDeclaredConstructors();
-        Constructor<?> minConstructor = null;
-        int minArguments = Integer.MAX_VALUE;
-        for (Constructor<?> c : constructors)
-        {
-            if (Modifier.isPublic(c.getModifiers()) || allowNonPublicConstructor)
-            {
-                int parameterCount = c.getParameterCount();
-                if (parameterCount < minArguments) {
-                    minArguments = parameterCount;
-                    minConstructor = c;
-                }
-            }
-        }
+    /**
+     * Deep copy object into existing graph, usually a previous copy of the same object. Objects of {@code target}
+     * graph are overwritten in place when they have the same class as corresponding objects of {@code source}
+     * (and the same length for arrays), collections of the same class are cleared and refilled.
+     * New objects are allocated only where shapes of the graphs differ. Shared and cyclic references of
+     * {@code source} are reproduced like in {@link #deepCopy(Object)}.
+     * <p>
+     * {@code target} graph must not share mutable objects with {@code source} graph.
+     * @param source object to copy
+     * @param target object to copy into
+     * @return {@code target} or a new copy, if {@code target} can't be reused (for example, it is of another class)
+     * @param <T> object type
+     */
+    public static <T> T deepCopyInto(T source, T target)
+    {
+        if (source == null || ImmutableTypes.isImmutable(source.getClass()))
+            return source;
+        if (source == target)
+            throw new IllegalArgumentException("Can't copy object into itself");
+        @SuppressWarnings("unchecked") T r = (T) new CopyEngine(new IdentityCopyMap()).copyInto(source, target);
+        return r;
+    }
 
-        if (minConstructor == null)
-            throw new IllegalArgumentException("There are no constructors for " + clazz);
+    /**
+     * Many deep copies of the same object. The prototype is traversed once, see {@link Stamper}.
+     * @param prototype object to copy
+     * @param n number of copies
+     * @return {@code n} independent deep copies
+     * @param <T> object type
+     */
+    public static <T> List<T> stamp(T prototype, int n)
+    {
+        return stamper(prototype).stamp(n);
+    }
 
-        minConstructor.setAccessible(true);
-        try {
-            Object[] parameters = new Object[minArguments];
-            Class<?>[] parameterTypes = minConstructor.getParameterTypes();
-            int pc = minConstructor.getParameterCount();
-            for (int y = 0; y < pc; y++)
-            {
-                Class<?> parameterType = parameterTypes[y];
-                parameters[y] = getDefaultConstructorArgument(parameterType);
-            }
-            @SuppressWarnings("unchecked") T r = (T) minConstructor.newInstance(parameters);
-            return r;
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Factory of deep copies for many copies of the same object, produced on demand
+     * (see {@link Stamper#stamp()}, {@link Stamper#stream()}).
+     * @param prototype object to copy
+     * @return stamper of the prototype
+     * @param <T> object type
+     */
+    public static <T> Stamper<T> stamper(T prototype)
+    {
+        return new Stamper<>(prototype);
     }
 
-    private static <T> Constructor<T> getDefaultConstructor(Class<T> clazz, boolean allowNonPublicConstructor, boolean useNonDefaultConstructor) {
-        Constructor<T> defaultConstructor = null;
-        try {
-            defaultConstructor = clazz.getConstructor();
-        } catch (NoSuchMethodException e) {
-            if (!useNonDefaultConstructor) {
-                throw new IllegalArgumentException("There is no default constructor for " + clazz);
-            }
-        }
-        if (defaultConstructor != null) {
-            int modifiers = defaultConstructor.getModifiers();
-            if (!Modifier.isPublic(modifiers) && !allowNonPublicConstructor) {
-                if (!useNonDefaultConstructor) {
-                    throw new IllegalArgumentException("There is no public default constructor for " + clazz);
-                }
-            }
-        }
-        return defaultConstructor;
+    /**
+     * Lazy deep copy. Returned proxy implements {@code iface} and {@link LazyCopy}. It shares the original
+     * and copies subgraphs returned by read methods on first access. Any other method materializes the full copy.
+     * The original must not be mutated until the copy is materialized, see {@link LazyCopy} for details.
+     * @param obj object to copy
+     * @param iface interface implemented by the object, the copy is accessed through it
+     * @return lazy copy of the object
+     * @param <I> type of the object, {@code iface} or its parameterization
+     */
+    public static <I> I lazyCopy(I obj, Class<? super I> iface)
+    {
+        Objects.requireNonNull(obj);
+        if (!iface.isInterface() || !iface.isInstance(obj))
+            throw new IllegalArgumentException(iface + " is not an interface of " + obj.getClass());
+        ClassLoader loader = PROXY_LOADERS.get(iface);
+        if (!Modifier.isPublic(iface.getModifiers()) && loader != iface.getClassLoader())
+            throw new IllegalArgumentException("Non-public " + iface + " is defined by a class loader which doesn't see "
+                    + LazyCopy.class.getName());
+        Object proxy = Proxy.newProxyInstance(loader, new Class<?>[]{iface, LazyCopy.class}, new LazyCopyHandler(obj));
+        @SuppressWarnings("unchecked") I r = (I) proxy;
+        return r;
     }
 
-    private static Object copyPrimitiveArray(Object array, Class<?> componentType) {
+    static Object copyPrimitiveArray(Object array, Class<?> componentType) {
 
         if (componentType == int.class)
         {
@@ -281,11 +297,11 @@ public class CopyUtils {
     }
 
     /**
-     * To be used in non-default constructor
+     * To be used in non-default constructor, see {@link Instantiator}
      * @param clazz parameter of non-default constructor
      * @return object of type clazz
      */
-    private static Object getDefaultConstructorArgument(Class<?> clazz) {
+    static Object getDefaultConstructorArgument(Class<?> clazz) {
         if (clazz == byte.class) {
             return (byte) 0;
         } else if (clazz == short.class)
@@ -351,12 +367,20 @@ public class CopyUtils {
         return null;
     }
 
-    private record CopyTask(Object original, Consumer<Object> copyObserver) {
+    /**
+     * Loader of interfaces which resolves {@link LazyCopy} to this library's class.
+     */
+    private static final class LazyCopyLoader extends ClassLoader {
+
+        LazyCopyLoader(ClassLoader parent) {
+            super(parent);
+        }
 
-        public void propagate(Object copy) {
-                if (copyObserver != null)
-                    copyObserver.accept(copy);
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (name.equals(LazyCopy.class.getName()))
+                return LazyCopy.class;
+            return super.findClass(name);
         }
     }
-
 }
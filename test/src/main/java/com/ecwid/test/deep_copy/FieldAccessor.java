@@ -0,0 +1,252 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to a single non-static field based on {@link VarHandle}.
+ * Primitive values are moved with type-specialized calls, so they are never boxed.
+ * <p>
+ * {@link VarHandle} is read-only for final fields, so final fields are written with
+ * a setter {@link MethodHandle} obtained after {@link Field#setAccessible(boolean)}.
+ * Fields of records can't be written at all, records are created by their canonical constructor
+ * (see {@link RecordPlan}), so their accessors are read-only.
+ */
+final class FieldAccessor {
+
+    final Field field;
+    final Class<?> type;
+    private final VarHandle handle;
+    private final MethodHandle finalSetter;
+
+    FieldAccessor(Field field) {
+        this.field = field;
+        this.type = field.getType();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+            this.handle = lookup.unreflectVarHandle(field);
+            if (Modifier.isFinal(field.getModifiers()) && !field.getDeclaringClass().isRecord()) {
+                field.setAccessible(true);
+                Class<?> valueType = type.isPrimitive() ? type : Object.class;
+                this.finalSetter = lookup.unreflectSetter(field)
+                        .asType(MethodType.methodType(void.class, Object.class, valueType));
+            } else {
+                this.finalSetter = null;
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    String name() {
+        return field.getName();
+    }
+
+    Object get(Object obj) {
+        return handle.get(obj);
+    }
+
+    void set(Object obj, Object value) {
+        if (finalSetter == null) {
+            handle.set(obj, value);
+            return;
+        }
+        try {
+            finalSetter.invokeExact(obj, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Copies value of the field from {@code src} to {@code dst} as is.
+     * For primitive fields value is transferred without boxing.
+     * @param src object to read the field from
+     * @param dst object to write the field to
+     */
+    void copy(Object src, Object dst) {
+        if (finalSetter != null) {
+            copyFinal(src, dst);
+            return;
+        }
+        if (type == int.class) {
+            handle.set(dst, (int) handle.get(src));
+        } else if (type == long.class) {
+            handle.set(dst, (long) handle.get(src));
+        } else if (type == double.class) {
+            handle.set(dst, (double) handle.get(src));
+        } else if (type == boolean.class) {
+            handle.set(dst, (boolean) handle.get(src));
+        } else if (type == float.class) {
+            handle.set(dst, (float) handle.get(src));
+        } else if (type == byte.class) {
+            handle.set(dst, (byte) handle.get(src));
+        } else if (type == short.class) {
+            handle.set(dst, (short) handle.get(src));
+        } else if (type == char.class) {
+            handle.set(dst, (char) handle.get(src));
+        } else {
+            handle.set(dst, handle.get(src));
+        }
+    }
+
+    /**
+     * Copies value of the field like {@link #copy(Object, Object)}, unless {@code dst} already holds the same value.
+     * Floating point values are compared by their bits.
+     * @param src object to read the field from
+     * @param dst object to write the field to
+     */
+    void patch(Object src, Object dst) {
+        boolean same;
+        if (type == int.class) {
+            same = (int) handle.get(src) == (int) handle.get(dst);
+        } else if (type == long.class) {
+            same = (long) handle.get(src) == (long) handle.get(dst);
+        } else if (type == double.class) {
+            same = Double.doubleToRawLongBits((double) handle.get(src))
+                    == Double.doubleToRawLongBits((double) handle.get(dst));
+        } else if (type == boolean.class) {
+            same = (boolean) handle.get(src) == (boolean) handle.get(dst);
+        } else if (type == float.class) {
+            same = Float.floatToRawIntBits((float) handle.get(src)) == Float.floatToRawIntBits((float) handle.get(dst));
+        } else if (type == byte.class) {
+            same = (byte) handle.get(src) == (byte) handle.get(dst);
+        } else if (type == short.class) {
+            same = (short) handle.get(src) == (short) handle.get(dst);
+        } else if (type == char.class) {
+            same = (char) handle.get(src) == (char) handle.get(dst);
+        } else {
+            same = handle.get(src) == handle.get(dst);
+        }
+        if (!same)
+            copy(src, dst);
+    }
+
+    private void copyFinal(Object src, Object dst) {
+        try {
+            if (type == int.class) {
+                finalSetter.invokeExact(dst, (int) handle.get(src));
+            } else if (type == long.class) {
+                finalSetter.invokeExact(dst, (long) handle.get(src));
+            } else if (type == double.class) {
+                finalSetter.invokeExact(dst, (double) handle.get(src));
+            } else if (type == boolean.class) {
+                finalSetter.invokeExact(dst, (boolean) handle.get(src));
+            } else if (type == float.class) {
+                finalSetter.invokeExact(dst, (float) handle.get(src));
+            } else if (type == byte.class) {
+                finalSetter.invokeExact(dst, (byte) handle.get(src));
+            } else if (type == short.class) {
+                finalSetter.invokeExact(dst, (short) handle.get(src));
+            } else if (type == char.class) {
+                finalSetter.invokeExact(dst, (char) handle.get(src));
+            } else {
+                finalSetter.invokeExact(dst, (Object) handle.get(src));
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Puts value of the primitive field into the buffer, see {@link SnapshotStore}.
+     * @param obj object to read the field from
+     * @param buffer buffer with enough space for the value
+     */
+    void write(Object obj, ByteBuffer buffer) {
+        if (type == int.class) {
+            buffer.putInt((int) handle.get(obj));
+        } else if (type == long.class) {
+            buffer.putLong((long) handle.get(obj));
+        } else if (type == double.class) {
+            buffer.putDouble((double) handle.get(obj));
+        } else if (type == boolean.class) {
+            buffer.put((boolean) handle.get(obj) ? (byte) 1 : (byte) 0);
+        } else if (type == float.class) {
+            buffer.putFloat((float) handle.get(obj));
+        } else if (type == byte.class) {
+            buffer.put((byte) handle.get(obj));
+        } else if (type == short.class) {
+            buffer.putShort((short) handle.get(obj));
+        } else if (type == char.class) {
+            buffer.putChar((char) handle.get(obj));
+        } else {
+            throw new IllegalStateException(this + " is not primitive");
+        }
+    }
+
+    /**
+     * Takes value of the primitive field from the buffer, reverse of {@link #write(Object, ByteBuffer)}.
+     * @param buffer buffer positioned at the value
+     * @param obj object to write the field to
+     */
+    void read(ByteBuffer buffer, Object obj) {
+        if (finalSetter != null) {
+            readFinal(buffer, obj);
+            return;
+        }
+        if (type == int.class) {
+            handle.set(obj, buffer.getInt());
+        } else if (type == long.class) {
+            handle.set(obj, buffer.getLong());
+        } else if (type == double.class) {
+            handle.set(obj, buffer.getDouble());
+        } else if (type == boolean.class) {
+            handle.set(obj, buffer.get() != 0);
+        } else if (type == float.class) {
+            handle.set(obj, buffer.getFloat());
+        } else if (type == byte.class) {
+            handle.set(obj, buffer.get());
+        } else if (type == short.class) {
+            handle.set(obj, buffer.getShort());
+        } else if (type == char.class) {
+            handle.set(obj, buffer.getChar());
+        } else {
+            throw new IllegalStateException(this + " is not primitive");
+        }
+    }
+
+    private void readFinal(ByteBuffer buffer, Object obj) {
+        try {
+            if (type == int.class) {
+                finalSetter.invokeExact(obj, buffer.getInt());
+            } else if (type == long.class) {
+                finalSetter.invokeExact(obj, buffer.getLong());
+            } else if (type == double.class) {
+                finalSetter.invokeExact(obj, buffer.getDouble());
+            } else if (type == boolean.class) {
+                finalSetter.invokeExact(obj, buffer.get() != 0);
+            } else if (type == float.class) {
+                finalSetter.invokeExact(obj, buffer.getFloat());
+            } else if (type == byte.class) {
+                finalSetter.invokeExact(obj, buffer.get());
+            } else if (type == short.class) {
+                finalSetter.invokeExact(obj, buffer.getShort());
+            } else if (type == char.class) {
+                finalSetter.invokeExact(obj, buffer.getChar());
+            } else {
+                throw new IllegalStateException(this + " is not primitive");
+            }
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException r)
+            return r;
+        if (e instanceof Error err)
+            throw err;
+        return new RuntimeException(e);
+    }
+
+    @Override
+    public String toString() {
+        return field.getDeclaringClass().getName() + "." + field.getName();
+    }
+}
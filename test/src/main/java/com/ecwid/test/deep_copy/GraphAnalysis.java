@@ -0,0 +1,42 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a deep copy of a graph would make, see {@link CopyUtils#analyze(Object)}. Immutable objects which a copy
+ * shares with the original (see {@link ImmutableTypes}) are not counted. Objects copied by a {@link CopyHandler}
+ * are counted without objects they refer to, handlers are not run.
+ * <p>
+ * Retained size of an object is estimated as the size of the objects first reached through it. It is exact for
+ * trees and for objects which aren't reachable from elsewhere, shared parts are counted for whichever owner is
+ * visited first. Retained size of a class doesn't count its instances nested in another instance of the class twice.
+ * @param objects number of objects, arrays and collections to copy
+ * @param bytes estimated size of the copy, see {@link CopyBudget}
+ * @param maxDepth number of references from the root to the deepest object along the way it was reached
+ * @param sharedReferences references to an object reached before, other than cyclic ones
+ * @param cyclicReferences references from an object to itself or to an object it is reachable from
+ * @param maxPending largest number of objects waiting to be visited at once, like pending entries of a copy
+ * @param classes counters per class, ordered by retained size, largest first
+ * @param largestArrays largest arrays by estimated size, largest first
+ */
+public record GraphAnalysis(long objects, long bytes, int maxDepth, long sharedReferences, long cyclicReferences,
+                            int maxPending, Map<Class<?>, ClassStats> classes, List<ArrayStats> largestArrays) {
+
+    /**
+     * @param objects number of instances of the class
+     * @param bytes estimated size of the instances
+     * @param retainedBytes estimated size of the instances with objects reachable only through them
+     */
+    public record ClassStats(long objects, long bytes, long retainedBytes) {
+    }
+
+    /**
+     * @param type class of the array
+     * @param length length of the array
+     * @param bytes estimated size of the array
+     * @param depth number of references from the root to the array
+     */
+    public record ArrayStats(Class<?> type, int length, long bytes, int depth) {
+    }
+}
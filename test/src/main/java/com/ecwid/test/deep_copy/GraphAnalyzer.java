@@ -0,0 +1,200 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Walks the graph like {@link CopyEngine} does, following the same fields and elements, but makes no copies.
+ * <p>
+ * Pending objects are kept in a flat stack like in the engine, so the largest number of pending objects is close
+ * to what the engine needs. When an object is visited, an exit entry is pushed below its references. Objects
+ * between the visit and the exit are those reached through the object first: the exit entry sums their sizes
+ * as retained size. Objects visited but not exited yet are the path from the root to the current object,
+ * a reference to one of them is cyclic.
+ * <p>
+ * Objects with a {@link CopyHandler} are counted, but their fields are not followed: the copy doesn't walk them
+ * either, and the handler isn't run, since it copies objects.
+ */
+final class GraphAnalyzer {
+
+    static final int LARGEST_ARRAYS = 10;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Depth of an exit entry.
+     */
+    private static final int EXIT = -1;
+
+    /**
+     * State of a visited object which is on the path from the root.
+     */
+    private static final Object ON_PATH = new Object();
+
+    /**
+     * State of a visited object after its exit.
+     */
+    private static final Object DONE = new Object();
+
+    private final IdentityCopyMap visited = new IdentityCopyMap();
+
+    private Object[] nodes = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Depth of each entry, {@link #EXIT} for exit entries.
+     */
+    private int[] depths = new int[INITIAL_CAPACITY];
+
+    /**
+     * Size of the objects visited before the object of an exit entry.
+     */
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Number of entries other than exits.
+     */
+    private int pending;
+
+    /**
+     * Per class: objects, bytes, retained bytes, instances on the path.
+     */
+    private final Map<Class<?>, long[]> classes = new HashMap<>();
+    private final PriorityQueue<GraphAnalysis.ArrayStats> arrays =
+            new PriorityQueue<>(Comparator.comparingLong(GraphAnalysis.ArrayStats::bytes));
+
+    private long objects;
+    private long bytes;
+    private int maxDepth;
+    private long shared;
+    private long cyclic;
+    private int maxPending;
+
+    /**
+     * @param root root of the graph, not {@code null} and not immutable
+     * @return analysis of the graph
+     */
+    GraphAnalysis analyze(Object root) {
+        push(root, 0);
+        while (size > 0) {
+            int i = --size;
+            Object node = nodes[i];
+            nodes[i] = null;
+            if (depths[i] == EXIT) {
+                exit(node, starts[i]);
+                continue;
+            }
+            pending--;
+            if (visited.containsKey(node)) {
+                shared++; // scheduled twice before it was visited
+                continue;
+            }
+            visit(node, depths[i]);
+        }
+        return result();
+    }
+
+    private void visit(Object node, int depth) {
+        visited.put(node, ON_PATH);
+        Class<?> type = node.getClass();
+        long shallow = CopyBudget.estimate(node);
+        long[] counters = classes.computeIfAbsent(type, t -> new long[4]);
+        counters[0]++;
+        counters[1] += shallow;
+        counters[3]++;
+        push(node, EXIT);
+        starts[size - 1] = bytes;
+        objects++;
+        bytes += shallow;
+        maxDepth = Math.max(maxDepth, depth);
+        if (type.isArray()) {
+            int length = Array.getLength(node);
+            if (arrays.size() < LARGEST_ARRAYS || arrays.peek().bytes() < shallow) {
+                arrays.add(new GraphAnalysis.ArrayStats(type, length, shallow, depth));
+                if (arrays.size() > LARGEST_ARRAYS)
+                    arrays.poll();
+            }
+            if (!ImmutableTypes.isImmutableFieldType(type.componentType())) {
+                for (Object element : (Object[]) node)
+                    reference(element, depth + 1);
+            }
+            return;
+        }
+        if (CopyHandlers.of(type) != null)
+            return;
+        CollectionCopier collection = CollectionCopier.of(type);
+        Object[] elements = collection != null ? collection.elements(node) : null;
+        if (elements != null) {
+            for (Object element : elements)
+                reference(element, depth + 1);
+        } else if (node instanceof Record) {
+            RecordPlan plan = RecordPlan.of(type);
+            Object[] values = plan.components(node);
+            for (int k = 0; k < values.length; k++) {
+                if (plan.deep[k])
+                    reference(values[k], depth + 1);
+            }
+        } else {
+            CopyPlan plan = CopyPlan.of(type);
+            for (FieldAccessor field : plan.objectFields)
+                reference(field.get(node), depth + 1);
+            for (FieldAccessor field : plan.arrayFields)
+                reference(field.get(node), depth + 1);
+        }
+    }
+
+    private void exit(Object node, long start) {
+        visited.put(node, DONE);
+        long[] counters = classes.get(node.getClass());
+        if (--counters[3] == 0)
+            counters[2] += bytes - start; // outermost instance of the class on the path
+    }
+
+    private void reference(Object value, int depth) {
+        if (value == null || ImmutableTypes.isImmutable(value.getClass()))
+            return;
+        Object state = visited.get(value);
+        if (state == ON_PATH)
+            cyclic++;
+        else if (state == DONE)
+            shared++;
+        else
+            push(value, depth);
+    }
+
+    private void push(Object node, int depth) {
+        if (size == nodes.length) {
+            int capacity = size << 1;
+            nodes = Arrays.copyOf(nodes, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+        }
+        nodes[size] = node;
+        depths[size] = depth;
+        size++;
+        if (depth != EXIT)
+            maxPending = Math.max(maxPending, ++pending);
+    }
+
+    private GraphAnalysis result() {
+        List<Map.Entry<Class<?>, long[]>> entries = new ArrayList<>(classes.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<Class<?>, long[]> e) -> e.getValue()[2]).reversed());
+        Map<Class<?>, GraphAnalysis.ClassStats> perClass = new LinkedHashMap<>();
+        for (Map.Entry<Class<?>, long[]> e : entries) {
+            long[] counters = e.getValue();
+            perClass.put(e.getKey(), new GraphAnalysis.ClassStats(counters[0], counters[1], counters[2]));
+        }
+        List<GraphAnalysis.ArrayStats> largest = new ArrayList<>(arrays);
+        largest.sort(Comparator.comparingLong(GraphAnalysis.ArrayStats::bytes).reversed());
+        return new GraphAnalysis(objects, bytes, maxDepth, shared, cyclic, maxPending,
+                Collections.unmodifiableMap(perClass), List.copyOf(largest));
+    }
+}
@@ -0,0 +1,283 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of original objects to their copies, keys are compared by reference like in {@link java.util.IdentityHashMap}.
+ * <p>
+ * Open addressing with linear probing over parallel {@code keys} and {@code values} arrays, so no entry objects
+ * are allocated. Slot of a key is derived from {@link System#identityHashCode(Object)} with Fibonacci hashing.
+ * Can be presized with expected number of objects to avoid rehashing of a big graph.
+ * <p>
+ * {@link #getOrReserve(Object)} finds the key and, if it is absent, remembers its free slot, so the following
+ * {@link #putReserved(Object, Object)} stores the copy without probing again.
+ * <p>
+ * Map doesn't support {@code null} keys, its views don't support removal. Not thread safe.
+ * Can be passed to {@link CopyUtils#deepCopyInternal(Object, java.util.Map)}.
+ */
+public final class IdentityCopyMap extends AbstractMap<Object, Object> implements CopyTable {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private Object[] keys;
+    private Object[] values;
+    private int shift;
+    private int threshold;
+    private int size;
+
+    private Object reservedKey;
+    private int reservedIndex;
+
+    public IdentityCopyMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize expected number of copied objects
+     */
+    public IdentityCopyMap(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Negative size " + expectedSize);
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long required = (long) Math.ceil(expectedSize / (double) LOAD_FACTOR) + 1;
+        if (required >= 1 << 30)
+            return 1 << 30;
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit((int) required - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new Object[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        reservedKey = null;
+    }
+
+    private int indexFor(Object key) {
+        return (System.identityHashCode(key) * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * @param key key to find
+     * @return index of the key or {@code -(free slot index) - 1} if the key is absent
+     */
+    private int find(Object key) {
+        Object[] k = keys;
+        int mask = k.length - 1;
+        int i = indexFor(key);
+        while (true) {
+            Object candidate = k[i];
+            if (candidate == key)
+                return i;
+            if (candidate == null)
+                return -i - 1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    @Override
+    public Object getOrReserve(Object original) {
+        if (size >= threshold)
+            rehash(keys.length << 1);
+        int i = find(original);
+        if (i >= 0)
+            return values[i];
+        reservedKey = original;
+        reservedIndex = -i - 1;
+        return null;
+    }
+
+    @Override
+    public Object putReserved(Object original, Object copy) {
+        if (reservedKey == original) {
+            reservedKey = null;
+            if (keys[reservedIndex] == null) {
+                keys[reservedIndex] = original;
+                values[reservedIndex] = copy;
+                size++;
+                return copy;
+            }
+        }
+        Object existing = putIfAbsent(original, copy);
+        return existing != null ? existing : copy;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (key == null)
+            return null;
+        int i = find(key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && find(key) >= 0;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException("null keys are not supported");
+        int i = find(key);
+        if (i >= 0) {
+            Object old = values[i];
+            values[i] = value;
+            return old;
+        }
+        insert(-i - 1, key, value);
+        return null;
+    }
+
+    @Override
+    public Object putIfAbsent(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException("null keys are not supported");
+        int i = find(key);
+        if (i >= 0) {
+            Object old = values[i];
+            if (old == null)
+                values[i] = value;
+            return old;
+        }
+        insert(-i - 1, key, value);
+        return null;
+    }
+
+    private void insert(int index, Object key, Object value) {
+        if (size >= threshold) {
+            rehash(keys.length << 1);
+            index = -find(key) - 1;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (key == null)
+            return null;
+        int i = find(key);
+        if (i < 0)
+            return null;
+        Object old = values[i];
+        delete(i);
+        return old;
+    }
+
+    /**
+     * Backward shift deletion: entries after the removed one are moved closer to their home slots,
+     * so lookups never need tombstones.
+     */
+    private void delete(int index) {
+        Object[] k = keys;
+        Object[] v = values;
+        int mask = k.length - 1;
+        int hole = index;
+        int i = (hole + 1) & mask;
+        while (k[i] != null) {
+            int home = indexFor(k[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                k[hole] = k[i];
+                v[hole] = v[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        k[hole] = null;
+        v[hole] = null;
+        size--;
+        reservedKey = null;
+    }
+
+    private void rehash(int capacity) {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            Object key = oldKeys[j];
+            if (key != null) {
+                int i = indexFor(key);
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(values, null);
+        size = 0;
+        reservedKey = null;
+    }
+
+    /**
+     * Clears the map for reuse, see {@link CopyContext}. Map which grew beyond {@code maxCapacity} slots
+     * is shrunk to the initial capacity, so one large copy doesn't keep its table forever.
+     * @param maxCapacity largest capacity to keep
+     */
+    void clear(int maxCapacity) {
+        if (keys.length > maxCapacity) {
+            allocate(MIN_CAPACITY);
+            size = 0;
+        } else if (size > 0) {
+            clear();
+        }
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                return new Iterator<>() {
+                    private int next = advance(0);
+
+                    private int advance(int from) {
+                        while (from < keys.length && keys[from] == null)
+                            from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Entry<Object, Object> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Entry<Object, Object> e = new SimpleImmutableEntry<>(keys[next], values[next]);
+                        next = advance(next + 1);
+                        return e;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of immutable types. Instances of immutable types are not copied, copy shares the reference with original.
+ * <p>
+ * Built-in immutable types are boxed primitives, {@link String}, enums, {@link Class} and common JDK value types
+ * ({@link BigDecimal}, {@link UUID}, {@code java.time} values and so on). User classes can be marked immutable with
+ * {@link #register(Class[])}. Other classes are inferred to be immutable if all their instance fields (including
+ * inherited) are final and of immutable types. Result is cached per class. So records made only of immutable
+ * components are immutable too.
+ * <p>
+ * Declared type of a field is immutable if every possible runtime class is immutable: the type is final
+ * and immutable, or it is sealed and all its permitted subclasses are immutable.
+ * <p>
+ * Registration should happen before the first copy of classes referring to registered types: decisions made
+ * for already copied classes are cached and are not revisited.
+ */
+public final class ImmutableTypes {
+
+    private static final Set<Class<?>> BUILT_IN = Set.of(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, Void.class, Class.class,
+            BigInteger.class, BigDecimal.class, UUID.class, Locale.class, Currency.class, URI.class, File.class,
+            Pattern.class,
+            Instant.class, LocalDate.class, LocalTime.class, LocalDateTime.class, OffsetDateTime.class,
+            OffsetTime.class, ZonedDateTime.class, Duration.class, Period.class, Year.class, YearMonth.class,
+            MonthDay.class,
+            OptionalInt.class, OptionalLong.class, OptionalDouble.class);
+
+    /**
+     * Types all subclasses of which are immutable.
+     */
+    private static final List<Class<?>> BUILT_IN_HIERARCHIES = List.of(
+            Enum.class, ZoneId.class, Charset.class, Path.class, InetAddress.class);
+
+    private static final Set<Class<?>> registered = ConcurrentHashMap.newKeySet();
+
+    private static final ClassValue<Boolean> IMMUTABLE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return computeImmutable(type, new HashSet<>());
+        }
+    };
+
+    private static final ClassValue<Boolean> IMMUTABLE_FIELD_TYPE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return computeImmutableFieldType(type, new HashSet<>());
+        }
+    };
+
+    private ImmutableTypes() {
+    }
+
+    /**
+     * Marks classes as immutable, so their instances are shared between original and copy.
+     * @param types classes to mark
+     */
+    public static void register(Class<?>... types)
+    {
+        for (Class<?> type : types) {
+            if (type.isArray() || type.isPrimitive())
+                throw new IllegalArgumentException("Can't register " + type + " as immutable");
+            registered.add(type);
+            IMMUTABLE.remove(type);
+            IMMUTABLE_FIELD_TYPE.remove(type);
+        }
+    }
+
+    /**
+     * @param type runtime class of an object
+     * @return {@code true} if instances of the class don't need to be copied
+     */
+    public static boolean isImmutable(Class<?> type)
+    {
+        return IMMUTABLE.get(type);
+    }
+
+    /**
+     * Checks type of field: value of the field can be shared only if every possible runtime class is immutable.
+     * @param type declared type of a field
+     * @return {@code true} if the value of such field doesn't need to be copied
+     */
+    static boolean isImmutableFieldType(Class<?> type) {
+        return type.isPrimitive() || IMMUTABLE_FIELD_TYPE.get(type);
+    }
+
+    /**
+     * @param type runtime class of an object
+     * @return {@code true} if the class is one of built-in immutable JDK types, not registered or inferred
+     */
+    static boolean isBuiltIn(Class<?> type) {
+        if (BUILT_IN.contains(type))
+            return true;
+        for (Class<?> hierarchy : BUILT_IN_HIERARCHIES) {
+            if (hierarchy.isAssignableFrom(type))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean computeImmutableFieldType(Class<?> type, Set<Class<?>> visiting) {
+        if (type.isPrimitive())
+            return true;
+        if (isEffectivelyFinal(type))
+            return computeImmutable(type, visiting);
+        if (!type.isSealed())
+            return false;
+        if (!type.isInterface() && !computeImmutable(type, visiting))
+            return false; // fields of sealed class itself
+        for (Class<?> permitted : type.getPermittedSubclasses()) {
+            if (!computeImmutableFieldType(permitted, visiting))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isEffectivelyFinal(Class<?> type) {
+        return Modifier.isFinal(type.getModifiers()) || type.isEnum();
+    }
+
+    private static boolean computeImmutable(Class<?> type, Set<Class<?>> visiting) {
+        if (type.isArray() || type == Object.class)
+            return false;
+        if (registered.contains(type) || isBuiltIn(type))
+            return true;
+        if (!visiting.add(type))
+            return true; // type refers to itself, it's up to other fields
+        Class<?> cl = type;
+        while (cl != null && cl != Object.class) {
+            for (Field field : cl.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers))
+                    continue;
+                if (!Modifier.isFinal(modifiers))
+                    return false;
+                if (!computeImmutableFieldType(field.getType(), visiting))
+                    return false;
+            }
+            cl = cl.getSuperclass();
+        }
+        return true;
+    }
+}
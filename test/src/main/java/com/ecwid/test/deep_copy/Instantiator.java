@@ -0,0 +1,184 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Creates instances of one class to be filled as copies. Resolved once per class and cached, see {@link #of(Class)}.
+ * <p>
+ * Preferred way is to allocate an instance without running any constructor of the class, like deserialization does:
+ * {@code sun.reflect.ReflectionFactory} (module {@code jdk.unsupported}) provides a constructor which only runs
+ * {@link Object#Object()}. Constructors of the class can't fail on validation of their arguments and have no
+ * side effects, and every field is overwritten by the copy anyway.
+ * <p>
+ * If the JDK doesn't provide it, a constructor is chosen once:
+ * <ol>
+ *     <li>default constructor</li>
+ *     <li>public {@code clone()} of the original, if the class is {@link Cloneable}</li>
+ *     <li>constructor with the shortest list of parameters, called with default values
+ *     (see {@link CopyUtils#getDefaultConstructorArgument(Class)}).
+ *     It may fail, if constructor does validations or anything other than assignment operations on arguments.</li>
+ * </ol>
+ */
+abstract class Instantiator {
+
+    private static final ClassValue<Instantiator> INSTANTIATORS = new ClassValue<>() {
+        @Override
+        protected Instantiator computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    /**
+     * {@code ReflectionFactory.getReflectionFactory()}, {@code null} if it is not available.
+     */
+    private static final Object REFLECTION_FACTORY;
+
+    /**
+     * {@code ReflectionFactory.newConstructorForSerialization(Class, Constructor)}
+     */
+    private static final Method NEW_CONSTRUCTOR_FOR_SERIALIZATION;
+
+    static {
+        Object factory = null;
+        Method method = null;
+        try {
+            Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            method = factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+            factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            method = null;
+        }
+        REFLECTION_FACTORY = factory;
+        NEW_CONSTRUCTOR_FOR_SERIALIZATION = method;
+    }
+
+    /**
+     * How instances are created, reported by {@link CopyMetrics}.
+     */
+    final CopyStats.Strategy strategy;
+
+    Instantiator(CopyStats.Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param type class of the objects to copy
+     * @return cached instantiator for the class
+     */
+    static Instantiator of(Class<?> type) {
+        return INSTANTIATORS.get(type);
+    }
+
+    /**
+     * @param original object to copy, instance of the class, {@code null} if the instance is restored from a snapshot
+     * @return new instance of the class
+     */
+    abstract Object newInstance(Object original);
+
+    private static Instantiator resolve(Class<?> type) {
+        if (type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers()))
+            throw new IllegalArgumentException("Can't instantiate " + type);
+        Constructor<?> allocator = serializationConstructor(type);
+        if (allocator != null)
+            return new ConstructorInstantiator(CopyStats.Strategy.ALLOCATION, allocator, new Object[0]);
+        return chooseConstructor(type);
+    }
+
+    /**
+     * @return constructor which allocates instance of the type running only {@link Object#Object()},
+     * {@code null} if the JDK doesn't provide it
+     */
+    private static Constructor<?> serializationConstructor(Class<?> type) {
+        if (NEW_CONSTRUCTOR_FOR_SERIALIZATION == null)
+            return null;
+        try {
+            Constructor<?> constructor = (Constructor<?>) NEW_CONSTRUCTOR_FOR_SERIALIZATION.invoke(
+                    REFLECTION_FACTORY, type, Object.class.getDeclaredConstructor());
+            if (constructor != null)
+                constructor.setAccessible(true);
+            return constructor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Instantiator chooseConstructor(Class<?> type) {
+        try {
+            Constructor<?> defaultConstructor = type.getDeclaredConstructor();
+            defaultConstructor.setAccessible(true);
+            return new ConstructorInstantiator(CopyStats.Strategy.DEFAULT_CONSTRUCTOR, defaultConstructor, new Object[0]);
+        } catch (NoSuchMethodException e) {
+            // try other ways
+        }
+
+        if (Cloneable.class.isAssignableFrom(type)) {
+            try {
+                return new CloneInstantiator(type.getMethod("clone"));
+            } catch (NoSuchMethodException e) {
+                // clone() is not public
+            }
+        }
+
+        Constructor<?> minConstructor = null;
+        for (Constructor<?> c : type.getDeclaredConstructors()) {
+            if (minConstructor == null || c.getParameterCount() < minConstructor.getParameterCount())
+                minConstructor = c;
+        }
+        if (minConstructor == null)
+            throw new IllegalArgumentException("There are no constructors for " + type);
+        minConstructor.setAccessible(true);
+        Class<?>[] parameterTypes = minConstructor.getParameterTypes();
+        Object[] parameters = new Object[parameterTypes.length];
+        for (int k = 0; k < parameterTypes.length; k++)
+            parameters[k] = CopyUtils.getDefaultConstructorArgument(parameterTypes[k]);
+        return new ConstructorInstantiator(CopyStats.Strategy.CONSTRUCTOR, minConstructor, parameters);
+    }
+
+    /**
+     * Calls the constructor with the same arguments each time.
+     */
+    private static final class ConstructorInstantiator extends Instantiator {
+
+        private final Constructor<?> constructor;
+        private final Object[] parameters;
+
+        ConstructorInstantiator(CopyStats.Strategy strategy, Constructor<?> constructor, Object[] parameters) {
+            super(strategy);
+            this.constructor = constructor;
+            this.parameters = parameters;
+        }
+
+        @Override
+        Object newInstance(Object original) {
+            try {
+                return constructor.newInstance(parameters);
+            } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static final class CloneInstantiator extends Instantiator {
+
+        private final Method clone;
+
+        CloneInstantiator(Method clone) {
+            super(CopyStats.Strategy.CLONE);
+            this.clone = clone;
+        }
+
+        @Override
+        Object newInstance(Object original) {
+            if (original == null)
+                throw new IllegalArgumentException("Can't instantiate " + clone.getDeclaringClass() + " without the original");
+            try {
+                return clone.invoke(original);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
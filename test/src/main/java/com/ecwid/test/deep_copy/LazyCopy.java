@@ -0,0 +1,28 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Implemented by proxies returned from {@link CopyUtils#lazyCopy(Object, Class)}.
+ * <p>
+ * Lazy copy shares the original until it is materialized. Read methods of JDK collection interfaces
+ * ({@code get}, {@code contains}, {@code size}...) are executed on the original, and their results are deep copied,
+ * so only the touched subgraphs are copied. {@code get} of an access ordered {@link java.util.LinkedHashMap}
+ * is not a read. The first call of any other method (a mutation, a view like {@code keySet()}, a callback
+ * like {@code forEach}, any method of other interfaces) materializes the copy:
+ * the rest of the original is deep copied, reusing already copied subgraphs, and from then on all calls go to the copy.
+ * <p>
+ * Rules for the original: until {@link #materialize()} is called (explicitly or by a non-read method),
+ * the original must not be mutated, otherwise the lazy copy observes the changes.
+ * After materialization, the original and the copy are independent.
+ */
+public interface LazyCopy {
+
+    /**
+     * Copies the rest of the original, after this call the original can be mutated freely.
+     */
+    void materialize();
+
+    /**
+     * @return {@code true} if the copy doesn't depend on the original anymore
+     */
+    boolean isMaterialized();
+}
@@ -0,0 +1,109 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * {@link InvocationHandler} of {@link LazyCopy} proxies.
+ * All copies, partial and full, share one {@link IdentityCopyMap}, so an object reached by several reads
+ * is copied once, and materialization links already copied subgraphs into the full copy.
+ * Calls are synchronized, so a lazy copy can be used from several threads.
+ */
+final class LazyCopyHandler implements InvocationHandler {
+
+    /**
+     * Interfaces which declare {@link #READ_METHODS}, methods of the same names declared elsewhere are not
+     * known to be reads.
+     */
+    private static final Set<Class<?>> READ_INTERFACES = Set.of(Object.class, Collection.class, List.class,
+            Set.class, SortedSet.class, NavigableSet.class, Queue.class, Deque.class, Map.class, SortedMap.class,
+            NavigableMap.class);
+
+    /**
+     * Methods of collection interfaces which don't modify the receiver and don't expose its internals
+     * other than through the returned value.
+     */
+    private static final Set<String> READ_METHODS = Set.of(
+            "get", "getOrDefault", "containsKey", "containsValue", "contains", "containsAll", "size", "isEmpty",
+            "indexOf", "lastIndexOf", "peek", "element", "peekFirst", "peekLast", "getFirst", "getLast",
+            "firstKey", "lastKey", "first", "last", "floorKey", "ceilingKey", "lowerKey", "higherKey",
+            "floor", "ceiling", "lower", "higher", "equals", "hashCode", "toString");
+
+    /**
+     * {@code LinkedHashMap.accessOrder}, {@code null} if {@code java.util} is not open to this module,
+     * then every {@link LinkedHashMap} is assumed to be access ordered.
+     */
+    private static final VarHandle ACCESS_ORDER;
+
+    static {
+        VarHandle accessOrder;
+        try {
+            accessOrder = MethodHandles.privateLookupIn(LinkedHashMap.class, MethodHandles.lookup())
+                    .findVarHandle(LinkedHashMap.class, "accessOrder", boolean.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            accessOrder = null;
+        }
+        ACCESS_ORDER = accessOrder;
+    }
+
+    private final IdentityCopyMap copies = new IdentityCopyMap();
+    private Object original;
+    private Object copy;
+
+    LazyCopyHandler(Object original) {
+        this.original = original;
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == LazyCopy.class) {
+            if (method.getName().equals("materialize")) {
+                materialize();
+                return null;
+            }
+            return copy != null;
+        }
+        if (copy == null && !isRead(method))
+            materialize();
+        if (!Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+            method.setAccessible(true);
+        try {
+            Object result = method.invoke(copy != null ? copy : original, args);
+            return copy != null ? result : CopyUtils.deepCopyInternal(result, copies);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return {@code true} if the method can be called on the original
+     */
+    private boolean isRead(Method method) {
+        if (!READ_INTERFACES.contains(method.getDeclaringClass()) || !READ_METHODS.contains(method.getName()))
+            return false;
+        // get() of access ordered map moves the entry
+        return !(original instanceof LinkedHashMap<?, ?> map) || ACCESS_ORDER != null && !(boolean) ACCESS_ORDER.get(map);
+    }
+
+    private void materialize() {
+        if (copy == null) {
+            copy = CopyUtils.deepCopyInternal(original, copies);
+            original = null;
+        }
+    }
+}
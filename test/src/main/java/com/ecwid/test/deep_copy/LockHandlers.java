@@ -0,0 +1,77 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Built-in handlers which copy the state of locks as the state of new unlocked locks: a lock held while it is copied
+ * would be held by nobody in the copy, and threads waiting for it would never be woken.
+ * <p>
+ * {@link StampedLock} is replaced as a whole. {@link ReentrantLock} and {@link ReentrantReadWriteLock} are copied
+ * as usual except for their synchronizer, which is replaced by the one of a new lock of the same fairness, so
+ * conditions and read/write views copied with the lock refer to the new synchronizer.
+ */
+final class LockHandlers {
+
+    private LockHandlers() {
+    }
+
+    /**
+     * @return handlers of locks, without synchronizer handlers if {@code java.util.concurrent.locks} is not open
+     * to this module (such locks can't be copied anyway)
+     */
+    static List<CopyHandler<?>> all() {
+        List<CopyHandler<?>> handlers = new ArrayList<>();
+        handlers.add(new FreshLock(StampedLock.class, StampedLock::new));
+        try {
+            handlers.add(sync(ReentrantLock.class, () -> new ReentrantLock(true)));
+            handlers.add(sync(ReentrantLock.class, () -> new ReentrantLock(false)));
+            handlers.add(sync(ReentrantReadWriteLock.class, () -> new ReentrantReadWriteLock(true)));
+            handlers.add(sync(ReentrantReadWriteLock.class, () -> new ReentrantReadWriteLock(false)));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            // synchronizers are copied as usual, or rather fail to be copied
+        }
+        return handlers;
+    }
+
+    private static CopyHandler<?> sync(Class<?> owner, Supplier<?> locks)
+            throws NoSuchFieldException, IllegalAccessException {
+        VarHandle sync = MethodHandles.privateLookupIn(owner, MethodHandles.lookup())
+                .unreflectVarHandle(owner.getDeclaredField("sync"));
+        return new FreshLock(sync.get(locks.get()).getClass(), () -> sync.get(locks.get()));
+    }
+
+    /**
+     * Handler which returns a new object of exactly the handled class.
+     */
+    private static final class FreshLock implements CopyHandler<Object> {
+
+        private final Class<?> type;
+        private final Supplier<?> factory;
+
+        FreshLock(Class<?> type, Supplier<?> factory) {
+            this.type = type;
+            this.factory = factory;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Class<Object> type() {
+            return (Class<Object>) type;
+        }
+
+        @Override
+        public Object copy(Object original, Copier copier) {
+            if (original.getClass() != type)
+                throw new IllegalArgumentException("No handler registered for " + original.getClass().getName()
+                        + ", subclass of " + type.getName());
+            return factory.get();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader of a file through read-only memory-mapped windows, counterpart of {@link MappedOutput}.
+ * Values are taken directly from the mapped memory (the page cache), primitive arrays are filled
+ * with bulk operations.
+ */
+final class MappedInput {
+
+    private final FileChannel channel;
+    private final long size;
+    private ByteOrder order = ByteOrder.BIG_ENDIAN;
+    private long windowStart;
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param channel channel opened for reading
+     */
+    MappedInput(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    void order(ByteOrder order) {
+        this.order = order;
+        if (buffer != null)
+            buffer.order(order);
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    long position() {
+        return buffer == null ? 0 : windowStart + buffer.position();
+    }
+
+    /**
+     * @param n number of bytes to get, not more than a window
+     * @return buffer positioned at the current position with at least {@code n} bytes remaining
+     */
+    ByteBuffer require(int n) throws IOException {
+        if (buffer == null || buffer.remaining() < n) {
+            map();
+            if (buffer.remaining() < n)
+                throw new EOFException("Unexpected end of file at " + position());
+        }
+        return buffer;
+    }
+
+    /**
+     * @return bytes put by {@link MappedOutput#putBytes(byte[])}
+     */
+    byte[] getBytes() throws IOException {
+        int length = require(4).getInt();
+        if (length < 0 || length > size - position())
+            throw new IOException("Invalid length " + length + " at " + position());
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer b = require(1);
+            int count = Math.min(b.remaining(), length - offset);
+            b.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Fills a primitive array with bulk operations, see {@link MappedOutput#putArray(Object, int, int)}.
+     */
+    void getArray(Object array, int length, int elementSize) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer b = require(elementSize);
+            int count = Math.min(b.remaining() / elementSize, length - offset);
+            get(b, array, offset, count);
+            b.position(b.position() + count * elementSize);
+            offset += count;
+        }
+    }
+
+    private void map() throws IOException {
+        long position = position();
+        windowStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MappedOutput.WINDOW, size - position));
+        buffer.order(order);
+    }
+
+    /**
+     * Bulk get through a view buffer, it doesn't move position of {@code b}.
+     */
+    private static void get(ByteBuffer b, Object array, int offset, int count) {
+        if (array instanceof byte[] a) {
+            b.slice().get(a, offset, count);
+        } else if (array instanceof int[] a) {
+            b.asIntBuffer().get(a, offset, count);
+        } else if (array instanceof long[] a) {
+            b.asLongBuffer().get(a, offset, count);
+        } else if (array instanceof double[] a) {
+            b.asDoubleBuffer().get(a, offset, count);
+        } else if (array instanceof float[] a) {
+            b.asFloatBuffer().get(a, offset, count);
+        } else if (array instanceof short[] a) {
+            b.asShortBuffer().get(a, offset, count);
+        } else if (array instanceof char[] a) {
+            b.asCharBuffer().get(a, offset, count);
+        } else if (array instanceof boolean[] a) {
+            int position = b.position();
+            for (int k = 0; k < count; k++)
+                a[offset + k] = b.get(position + k) != 0;
+        } else {
+            throw new IllegalArgumentException("Unexpected type " + array);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential writer into a file of known size through memory-mapped windows. Values are put directly into
+ * the mapped memory, so there is no intermediate buffer and no system call per write. A window is forced
+ * to the disk when the writer moves to the next one. Files larger than one window (and than 2GB) are supported.
+ */
+final class MappedOutput {
+
+    static final int WINDOW = 1 << 28;
+
+    private final FileChannel channel;
+    private final long size;
+    private final ByteOrder order;
+    private long windowStart;
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param channel channel opened for reading and writing
+     * @param size exact size of the content, the file is extended to it
+     * @param order byte order of the values
+     */
+    MappedOutput(FileChannel channel, long size, ByteOrder order) {
+        this.channel = channel;
+        this.size = size;
+        this.order = order;
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    long position() {
+        return buffer == null ? 0 : windowStart + buffer.position();
+    }
+
+    /**
+     * @param n number of bytes to put, not more than a window
+     * @return buffer positioned at the current position with at least {@code n} bytes remaining
+     */
+    ByteBuffer reserve(int n) throws IOException {
+        if (buffer == null || buffer.remaining() < n) {
+            map();
+            if (buffer.remaining() < n)
+                throw new IllegalStateException("Content exceeds the size of " + size + " bytes");
+        }
+        return buffer;
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+        reserve(4).putInt(bytes.length);
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer b = reserve(1);
+            int count = Math.min(b.remaining(), bytes.length - offset);
+            b.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Puts elements of a primitive array with bulk operations.
+     * @param array primitive array
+     * @param length length of the array
+     * @param elementSize size of an element in bytes
+     */
+    void putArray(Object array, int length, int elementSize) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer b = reserve(elementSize);
+            int count = Math.min(b.remaining() / elementSize, length - offset);
+            put(b, array, offset, count);
+            b.position(b.position() + count * elementSize);
+            offset += count;
+        }
+    }
+
+    /**
+     * Forces the content to the disk.
+     */
+    void finish() throws IOException {
+        if (position() != size)
+            throw new IllegalStateException("Written " + position() + " bytes instead of " + size);
+        if (buffer != null)
+            buffer.force();
+    }
+
+    private void map() throws IOException {
+        long position = position();
+        if (buffer != null)
+            buffer.force();
+        windowStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW, size - position));
+        buffer.order(order);
+    }
+
+    /**
+     * Bulk put through a view buffer, it doesn't move position of {@code b}.
+     */
+    private static void put(ByteBuffer b, Object array, int offset, int count) {
+        if (array instanceof byte[] a) {
+            b.slice().put(a, offset, count);
+        } else if (array instanceof int[] a) {
+            b.asIntBuffer().put(a, offset, count);
+        } else if (array instanceof long[] a) {
+            b.asLongBuffer().put(a, offset, count);
+        } else if (array instanceof double[] a) {
+            b.asDoubleBuffer().put(a, offset, count);
+        } else if (array instanceof float[] a) {
+            b.asFloatBuffer().put(a, offset, count);
+        } else if (array instanceof short[] a) {
+            b.asShortBuffer().put(a, offset, count);
+        } else if (array instanceof char[] a) {
+            b.asCharBuffer().put(a, offset, count);
+        } else if (array instanceof boolean[] a) {
+            int position = b.position();
+            for (int k = 0; k < count; k++)
+                b.put(position + k, a[offset + k] ? (byte) 1 : (byte) 0);
+        } else {
+            throw new IllegalArgumentException("Unexpected type " + array);
+        }
+    }
+}
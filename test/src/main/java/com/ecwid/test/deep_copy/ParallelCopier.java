@@ -0,0 +1,124 @@
+package com.ecwid.test.deep_copy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Parallel deep copy on a {@link ForkJoinPool}.
+ * <p>
+ * Each task drains its own {@link CopyEngine}. When the engine accumulates more than {@link #SPLIT_THRESHOLD}
+ * pending entries and the pool has few queued tasks, the older half of entries is forked as a new task,
+ * idle workers steal such tasks. All engines share {@link ConcurrentCopyTable}, so every original object
+ * is copied exactly once, no matter how many threads reach it. Graphs which never grow wide stay
+ * on the calling task and are copied sequentially.
+ * <p>
+ * Record constructors may validate their components, so a record is created only when collections among them are
+ * filled. Engine which would create a record with a collection another engine has not filled yet stops instead,
+ * waiting engines are finished by the calling thread after the pool is done, see {@link #resume(Queue, CopyCounters)}.
+ * Waiting never blocks a worker, so engines can't deadlock waiting for each other.
+ * <p>
+ * When the copy is measured (see {@link CopyMetrics}), each engine counts into its own {@link CopyCounters},
+ * they are added to the counters of the copy when the engine finishes.
+ */
+final class ParallelCopier {
+
+    static final int SPLIT_THRESHOLD = 1024;
+
+    private final ForkJoinPool pool;
+
+    ParallelCopier(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param obj root of the graph, not {@code null}
+     * @return deep copy of the graph
+     */
+    Object copy(Object obj) {
+        CopyCounters counters = CopyMetrics.start();
+        CopyEngine engine = new CopyEngine(new ConcurrentCopyTable(pool.getParallelism()));
+        if (counters != null)
+            engine.measure(new CopyCounters(null));
+        engine.push(obj);
+        Queue<CopyEngine> waiting = new ConcurrentLinkedQueue<>();
+        pool.invoke(new CopyTask(null, engine, counters, waiting));
+        resume(waiting, counters);
+        if (counters != null)
+            CopyMetrics.finish(counters, obj);
+        return engine.root();
+    }
+
+    /**
+     * Finishes engines which stopped at records waiting for collections filled by other engines.
+     * When none of them can proceed, they wait for each other through a cycle of references: one of the records
+     * is created right away, like a sequential copy creates a record reachable from its components.
+     * @param waiting engines stopped at records
+     * @param total counters of the whole copy, {@code null} unless it is measured
+     */
+    private static void resume(Queue<CopyEngine> waiting, CopyCounters total) {
+        while (!waiting.isEmpty()) {
+            boolean progress = false;
+            for (int n = waiting.size(); n > 0; n--) {
+                CopyEngine engine = waiting.poll();
+                while (engine.pending() > 0 && !engine.blocked()) {
+                    engine.step();
+                    progress = true;
+                }
+                if (engine.pending() > 0)
+                    waiting.add(engine);
+                else if (total != null)
+                    total.add(engine.counters());
+            }
+            if (!progress)
+                waiting.element().step();
+        }
+    }
+
+    private static final class CopyTask extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CopyEngine engine;
+
+        /**
+         * Counters of the whole copy, {@code null} unless it is measured.
+         */
+        private final CopyCounters total;
+
+        /**
+         * Engines stopped at records, see {@link ParallelCopier#resume(Queue, CopyCounters)}.
+         */
+        private final Queue<CopyEngine> waiting;
+
+        CopyTask(CopyTask parent, CopyEngine engine, CopyCounters total, Queue<CopyEngine> waiting) {
+            super(parent);
+            this.engine = engine;
+            this.total = total;
+            this.waiting = waiting;
+        }
+
+        @Override
+        public void compute() {
+            while (engine.pending() > 0) {
+                if (engine.blocked()) {
+                    waiting.add(engine);
+                    tryComplete();
+                    return;
+                }
+                if (engine.pending() > SPLIT_THRESHOLD && getSurplusQueuedTaskCount() < 2) {
+                    CopyEngine other = engine.split();
+                    if (other != null) {
+                        addToPendingCount(1);
+                        new CopyTask(this, other, total, waiting).fork();
+                    }
+                }
+                engine.step();
+            }
+            if (total != null)
+                total.add(engine.counters());
+            tryComplete();
+        }
+    }
+}
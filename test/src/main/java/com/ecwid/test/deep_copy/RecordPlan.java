@@ -0,0 +1,96 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+
+/**
+ * Per-class description of how a record is copied. Fields of a record can't be written even reflectively,
+ * so a copy is created by the canonical constructor from copies of the components.
+ * Built once per class like {@link CopyPlan}.
+ * <p>
+ * Records made only of immutable components are not copied at all, see {@link ImmutableTypes}.
+ */
+final class RecordPlan {
+
+    private static final ClassValue<RecordPlan> PLANS = new ClassValue<>() {
+        @Override
+        protected RecordPlan computeValue(Class<?> type) {
+            return new RecordPlan(type);
+        }
+    };
+
+    final Class<?> type;
+
+    /**
+     * Fields of the components in the order of canonical constructor parameters.
+     */
+    final FieldAccessor[] components;
+
+    /**
+     * {@code true} for components which need deep copy, other components are shared.
+     */
+    final boolean[] deep;
+
+    /**
+     * Canonical constructor taking components as {@code Object[]}.
+     */
+    private final MethodHandle constructor;
+
+    private RecordPlan(Class<?> type) {
+        this.type = type;
+        RecordComponent[] recordComponents = type.getRecordComponents();
+        Class<?>[] parameterTypes = new Class<?>[recordComponents.length];
+        this.components = new FieldAccessor[recordComponents.length];
+        this.deep = new boolean[recordComponents.length];
+        try {
+            for (int k = 0; k < recordComponents.length; k++) {
+                parameterTypes[k] = recordComponents[k].getType();
+                components[k] = new FieldAccessor(type.getDeclaredField(recordComponents[k].getName()));
+                deep[k] = !ImmutableTypes.isImmutableFieldType(parameterTypes[k]);
+            }
+            Constructor<?> canonical = type.getDeclaredConstructor(parameterTypes);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            this.constructor = lookup.unreflectConstructor(canonical)
+                    .asSpreader(Object[].class, parameterTypes.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param type record class
+     * @return cached plan for the class, built on first request
+     */
+    static RecordPlan of(Class<?> type) {
+        return PLANS.get(type);
+    }
+
+    /**
+     * @param record record to copy
+     * @return values of the components
+     */
+    Object[] components(Object record) {
+        Object[] values = new Object[components.length];
+        for (int k = 0; k < values.length; k++)
+            values[k] = components[k].get(record);
+        return values;
+    }
+
+    /**
+     * @param values values of the components, primitives are boxed
+     * @return new record
+     */
+    Object newInstance(Object[] values) {
+        try {
+            return constructor.invokeExact(values);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.ecwid.test.deep_copy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-class layout of an object in a snapshot, see {@link SnapshotStore}. Built once per class like {@link CopyPlan}.
+ * <p>
+ * Fields of an object are written as a primitive block (values of primitive fields in their natural size)
+ * followed by reference indices of all other fields. Fields of a record are written in the order of its components.
+ * Each field is described in the class table by its name ({@code declaring.Class.field}) and type code,
+ * so fields can be matched by name when the class has changed since the snapshot was saved.
+ */
+final class SnapshotLayout {
+
+    /*
+     * Kinds of objects in the class table.
+     */
+    static final byte OBJECT = 0;
+    static final byte RECORD = 1;
+    static final byte ARRAY = 2;
+    static final byte COLLECTION = 3;
+    static final byte STRING = 4;
+    static final byte BOXED = 5;
+    static final byte ENUM = 6;
+    static final byte CLASS = 7;
+    static final byte BIG_INTEGER = 8;
+    static final byte BIG_DECIMAL = 9;
+    static final byte SERIALIZED = 10;
+
+    /**
+     * Type code of reference fields, primitive fields have codes of their descriptors ({@code I}, {@code J}...).
+     */
+    static final byte REFERENCE = 'L';
+
+    private static final ClassValue<SnapshotLayout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected SnapshotLayout computeValue(Class<?> type) {
+            return new SnapshotLayout(type);
+        }
+    };
+
+    /**
+     * Fields in the order they are written.
+     */
+    final FieldAccessor[] fields;
+    final byte[] codes;
+
+    /**
+     * Size of the fields in bytes.
+     */
+    final int bytes;
+
+    private SnapshotLayout(Class<?> type) {
+        List<FieldAccessor> fields = new ArrayList<>();
+        if (type.isRecord()) {
+            Collections.addAll(fields, RecordPlan.of(type).components);
+        } else {
+            CopyPlan plan = CopyPlan.of(type);
+            Collections.addAll(fields, plan.primitiveFields);
+            Collections.addAll(fields, plan.immutableFields);
+            Collections.addAll(fields, plan.objectFields);
+            Collections.addAll(fields, plan.arrayFields);
+        }
+        this.fields = fields.toArray(new FieldAccessor[0]);
+        this.codes = new byte[this.fields.length];
+        int bytes = 0;
+        for (int k = 0; k < codes.length; k++) {
+            codes[k] = code(this.fields[k].type);
+            bytes += size(codes[k]);
+        }
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param type class of an object or a record
+     * @return cached layout of the class
+     */
+    static SnapshotLayout of(Class<?> type) {
+        return LAYOUTS.get(type);
+    }
+
+    /**
+     * @param type type of a field or a component type of an array
+     * @return type code
+     */
+    static byte code(Class<?> type) {
+        if (!type.isPrimitive())
+            return REFERENCE;
+        return (byte) type.describeConstable().orElseThrow().descriptorString().charAt(0);
+    }
+
+    /**
+     * @param box class of a boxed primitive
+     * @return type code of the primitive
+     */
+    static byte boxedCode(Class<?> box) {
+        if (box == Integer.class)
+            return 'I';
+        if (box == Long.class)
+            return 'J';
+        if (box == Double.class)
+            return 'D';
+        if (box == Float.class)
+            return 'F';
+        if (box == Boolean.class)
+            return 'Z';
+        if (box == Byte.class)
+            return 'B';
+        if (box == Short.class)
+            return 'S';
+        if (box == Character.class)
+            return 'C';
+        throw new IllegalArgumentException("Unexpected type " + box);
+    }
+
+    /**
+     * @param code type code
+     * @return size of the value in bytes, references are indices of {@code int} size
+     */
+    static int size(byte code) {
+        return switch (code) {
+            case 'Z', 'B' -> 1;
+            case 'S', 'C' -> 2;
+            case 'I', 'F', REFERENCE -> 4;
+            case 'J', 'D' -> 8;
+            default -> throw new IllegalArgumentException("Unexpected type code " + code);
+        };
+    }
+
+    /**
+     * @param buffer buffer with enough space for the value
+     * @param code type code of the primitive
+     * @param value boxed primitive
+     */
+    static void put(ByteBuffer buffer, byte code, Object value) {
+        switch (code) {
+            case 'I' -> buffer.putInt((Integer) value);
+            case 'J' -> buffer.putLong((Long) value);
+            case 'D' -> buffer.putDouble((Double) value);
+            case 'F' -> buffer.putFloat((Float) value);
+            case 'Z' -> buffer.put((Boolean) value ? (byte) 1 : (byte) 0);
+            case 'B' -> buffer.put((Byte) value);
+            case 'S' -> buffer.putShort((Short) value);
+            case 'C' -> buffer.putChar((Character) value);
+            default -> throw new IllegalArgumentException("Unexpected type code " + code);
+        }
+    }
+
+    /**
+     * @param buffer buffer positioned at the value
+     * @param code type code of the primitive
+     * @return boxed primitive
+     */
+    static Object get(ByteBuffer buffer, byte code) {
+        return switch (code) {
+            case 'I' -> buffer.getInt();
+            case 'J' -> buffer.getLong();
+            case 'D' -> buffer.getDouble();
+            case 'F' -> buffer.getFloat();
+            case 'Z' -> buffer.get() != 0;
+            case 'B' -> buffer.get();
+            case 'S' -> buffer.getShort();
+            case 'C' -> buffer.getChar();
+            default -> throw new IllegalArgumentException("Unexpected type code " + code);
+        };
+    }
+}
@@ -0,0 +1,372 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Restores a graph from a snapshot file, see {@link SnapshotStore} for the format.
+ * <p>
+ * Restore reads the sections of the file: all objects are allocated first (values like strings are created
+ * right away), then component values of records, primitive fields and elements, and references as indices.
+ * Then objects are completed in {@link AssemblyOrder}, like {@link CopyUtils#deepCopy(Object)} completes them:
+ * reference fields and elements are set, collections are filled when their elements are complete, and records
+ * are created by their canonical constructors when their components are complete.
+ */
+final class SnapshotReader {
+
+    private final ClassLoader loader;
+    private static final int[] NO_REFS = new int[0];
+
+    private ClassEntry[] classes;
+    private Object[] objects;
+    private int[] classIds;
+
+    /**
+     * Indices of objects each object refers to: by fields (in the order of the class table, {@code -1} for other
+     * fields), by elements of arrays and collections.
+     */
+    private int[][] refs;
+
+    /**
+     * Component values of records, references are set when the record is created.
+     */
+    private Object[][] recordValues;
+
+    /**
+     * Objects already completed, collections which read their elements when they are filled need complete ones.
+     */
+    private boolean[] completed;
+
+    SnapshotReader(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    Object load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedInput in = new MappedInput(channel);
+            ByteBuffer header = in.require(9);
+            in.order(header.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != SnapshotStore.MAGIC)
+                throw new IOException(file + " is not a snapshot");
+            int version = header.getInt();
+            if (version != SnapshotStore.VERSION)
+                throw new IOException("Unsupported version " + version + " of snapshot " + file);
+            readClassTable(in.getBytes());
+            int count = in.require(4).getInt();
+            objects = new Object[count];
+            classIds = new int[count];
+            refs = new int[count][];
+            Arrays.fill(refs, NO_REFS);
+            for (int k = 0; k < count; k++)
+                readAllocation(in, k);
+            readRecords(in);
+            for (int k = 0; k < count; k++)
+                readContent(in, k);
+            boolean[] records = new boolean[count];
+            for (int k = 0; k < count; k++)
+                records[k] = classes[classIds[k]].kind == SnapshotLayout.RECORD;
+            int[] order = AssemblyOrder.of(refs);
+            int[] late = AssemblyOrder.late(order, refs, records);
+            for (int k : late) {
+                ClassEntry entry = classes[classIds[k]];
+                if (entry.kind != SnapshotLayout.OBJECT && entry.kind != SnapshotLayout.ARRAY)
+                    throw new IllegalArgumentException("Can't restore cyclic reference to record from " + entry.type
+                            + ", record is created only after its components");
+            }
+            completed = new boolean[count];
+            for (int k : order) {
+                complete(k);
+                completed[k] = true;
+            }
+            for (int k : late)
+                complete(k);
+            return count == 0 ? null : objects[0];
+        }
+    }
+
+    private void readClassTable(byte[] table) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(table));
+        classes = new ClassEntry[in.readInt()];
+        for (int k = 0; k < classes.length; k++) {
+            Class<?> type = load(in.readUTF());
+            byte kind = in.readByte();
+            String[] names = null;
+            byte[] codes = null;
+            if (kind == SnapshotLayout.OBJECT || kind == SnapshotLayout.RECORD) {
+                names = new String[in.readInt()];
+                codes = new byte[names.length];
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = in.readUTF();
+                    codes[j] = in.readByte();
+                }
+            }
+            classes[k] = new ClassEntry(type, kind, names, codes);
+        }
+    }
+
+    private Class<?> load(String name) throws IOException {
+        try {
+            return switch (name) {
+                case "boolean" -> boolean.class;
+                case "byte" -> byte.class;
+                case "short" -> short.class;
+                case "char" -> char.class;
+                case "int" -> int.class;
+                case "long" -> long.class;
+                case "float" -> float.class;
+                case "double" -> double.class;
+                case "void" -> void.class;
+                default -> Class.forName(name, false, loader);
+            };
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Can't load " + name, e);
+        }
+    }
+
+    private void readAllocation(MappedInput in, int k) throws IOException {
+        int classId = in.require(4).getInt();
+        classIds[k] = classId;
+        ClassEntry entry = classes[classId];
+        objects[k] = switch (entry.kind) {
+            case SnapshotLayout.OBJECT -> entry.instantiator.newInstance(null);
+            case SnapshotLayout.RECORD -> null;
+            case SnapshotLayout.ARRAY -> Array.newInstance(entry.type.componentType(), in.require(4).getInt());
+            case SnapshotLayout.COLLECTION -> {
+                int length = in.require(4).getInt();
+                refs[k] = new int[length];
+                yield entry.collection.newInstance(null, length);
+            }
+            case SnapshotLayout.BOXED -> {
+                byte code = SnapshotLayout.boxedCode(entry.type);
+                yield SnapshotLayout.get(in.require(SnapshotLayout.size(code)), code);
+            }
+            case SnapshotLayout.STRING -> new String(in.getBytes(), StandardCharsets.UTF_8);
+            case SnapshotLayout.ENUM -> enumConstant(entry.type, new String(in.getBytes(), StandardCharsets.UTF_8));
+            case SnapshotLayout.CLASS -> load(new String(in.getBytes(), StandardCharsets.UTF_8));
+            case SnapshotLayout.BIG_INTEGER -> new BigInteger(new String(in.getBytes(), StandardCharsets.US_ASCII));
+            case SnapshotLayout.BIG_DECIMAL -> new BigDecimal(new String(in.getBytes(), StandardCharsets.US_ASCII));
+            case SnapshotLayout.SERIALIZED -> deserialize(in.getBytes());
+            default -> throw new IOException("Unknown kind " + entry.kind + " of " + entry.type);
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumConstant(Class<?> type, String name) {
+        return Enum.valueOf((Class) type, name);
+    }
+
+    private Object deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads component values of records, records are created by {@link #complete(int)}.
+     */
+    private void readRecords(MappedInput in) throws IOException {
+        int count = in.require(4).getInt();
+        recordValues = new Object[objects.length][];
+        for (int r = 0; r < count; r++) {
+            int k = in.require(4).getInt();
+            ClassEntry entry = classes[classIds[k]];
+            RecordPlan plan = RecordPlan.of(entry.type);
+            Object[] values = new Object[plan.components.length];
+            for (int j = 0; j < values.length; j++) {
+                if (plan.components[j].type.isPrimitive())
+                    values[j] = CopyUtils.getDefaultConstructorArgument(plan.components[j].type);
+            }
+            int[] indices = new int[entry.codes.length];
+            ByteBuffer buffer = in.require(entry.bytes);
+            for (int j = 0; j < entry.codes.length; j++) {
+                byte code = entry.codes[j];
+                indices[j] = -1;
+                if (code == SnapshotLayout.REFERENCE) {
+                    int index = buffer.getInt();
+                    if (entry.components[j] >= 0)
+                        indices[j] = index;
+                } else {
+                    Object value = SnapshotLayout.get(buffer, code);
+                    if (entry.components[j] >= 0)
+                        values[entry.components[j]] = value;
+                }
+            }
+            recordValues[k] = values;
+            refs[k] = indices;
+        }
+    }
+
+    /**
+     * Reads primitive fields and elements, references are set by {@link #complete(int)}.
+     */
+    private void readContent(MappedInput in, int k) throws IOException {
+        ClassEntry entry = classes[classIds[k]];
+        Object obj = objects[k];
+        switch (entry.kind) {
+            case SnapshotLayout.OBJECT -> {
+                int[] indices = new int[entry.codes.length];
+                ByteBuffer buffer = in.require(entry.bytes);
+                for (int j = 0; j < entry.codes.length; j++) {
+                    byte code = entry.codes[j];
+                    FieldAccessor field = entry.fields[j];
+                    indices[j] = -1;
+                    if (code == SnapshotLayout.REFERENCE) {
+                        int index = buffer.getInt();
+                        if (field != null)
+                            indices[j] = index;
+                    } else if (field == null) {
+                        buffer.position(buffer.position() + SnapshotLayout.size(code));
+                    } else {
+                        field.read(buffer, obj);
+                    }
+                }
+                refs[k] = indices;
+            }
+            case SnapshotLayout.ARRAY -> {
+                int length = Array.getLength(obj);
+                Class<?> componentType = entry.type.componentType();
+                if (componentType.isPrimitive())
+                    in.getArray(obj, length, SnapshotLayout.size(SnapshotLayout.code(componentType)));
+                else
+                    refs[k] = readIndices(in, length);
+            }
+            case SnapshotLayout.COLLECTION -> refs[k] = readIndices(in, refs[k].length);
+            default -> {
+                // created in allocation section, records are read in record section
+            }
+        }
+    }
+
+    private static int[] readIndices(MappedInput in, int length) throws IOException {
+        int[] indices = new int[length];
+        for (int j = 0; j < length; j++)
+            indices[j] = in.require(4).getInt();
+        return indices;
+    }
+
+    /**
+     * Sets references of the object, fills the collection or creates the record.
+     */
+    private void complete(int k) {
+        ClassEntry entry = classes[classIds[k]];
+        int[] indices = refs[k];
+        switch (entry.kind) {
+            case SnapshotLayout.OBJECT -> {
+                for (int j = 0; j < indices.length; j++) {
+                    if (entry.codes[j] == SnapshotLayout.REFERENCE && entry.fields[j] != null)
+                        entry.fields[j].set(objects[k], object(indices[j]));
+                }
+            }
+            case SnapshotLayout.ARRAY -> {
+                if (!entry.type.componentType().isPrimitive()) {
+                    Object[] array = (Object[]) objects[k];
+                    for (int j = 0; j < array.length; j++)
+                        array[j] = object(indices[j]);
+                }
+            }
+            case SnapshotLayout.COLLECTION -> {
+                Object[] elements = new Object[indices.length];
+                for (int j = 0; j < elements.length; j++) {
+                    elements[j] = object(indices[j]);
+                    if (indices[j] >= 0 && !completed[indices[j]] && entry.collection.readsElement(elements[j], j))
+                        throw new IllegalArgumentException("Can't restore " + entry.type.getName() + ", its element "
+                                + elements[j].getClass().getName() + " refers back to it and isn't complete yet");
+                }
+                entry.collection.fill(objects[k], elements);
+            }
+            case SnapshotLayout.RECORD -> {
+                Object[] values = recordValues[k];
+                for (int j = 0; j < indices.length; j++) {
+                    if (entry.codes[j] == SnapshotLayout.REFERENCE && entry.components[j] >= 0)
+                        values[entry.components[j]] = object(indices[j]);
+                }
+                objects[k] = RecordPlan.of(entry.type).newInstance(values);
+                recordValues[k] = null;
+            }
+            default -> {
+                // value created in allocation section
+            }
+        }
+    }
+
+    private Object object(int index) {
+        return index < 0 ? null : objects[index];
+    }
+
+    /**
+     * Class of the snapshot resolved against the current version of the class.
+     */
+    private static final class ClassEntry {
+
+        final Class<?> type;
+        final byte kind;
+        final byte[] codes;
+
+        /**
+         * Size of the fields in the snapshot.
+         */
+        final int bytes;
+
+        /**
+         * Current fields of objects matching fields of the snapshot by name and type code, {@code null}
+         * for fields which no longer exist. The value of such field is skipped.
+         */
+        final FieldAccessor[] fields;
+
+        /**
+         * Positions of current record components matching fields of the snapshot, {@code -1} if there is none.
+         */
+        final int[] components;
+
+        final Instantiator instantiator;
+        final CollectionCopier collection;
+
+        ClassEntry(Class<?> type, byte kind, String[] names, byte[] codes) {
+            this.type = type;
+            this.kind = kind;
+            this.codes = codes;
+            int bytes = 0;
+            FieldAccessor[] fields = null;
+            int[] components = null;
+            if (codes != null) {
+                SnapshotLayout layout = SnapshotLayout.of(type);
+                Map<String, Integer> current = new HashMap<>();
+                for (int j = 0; j < layout.fields.length; j++)
+                    current.put(layout.fields[j].toString(), j);
+                fields = new FieldAccessor[codes.length];
+                components = new int[codes.length];
+                for (int j = 0; j < codes.length; j++) {
+                    bytes += SnapshotLayout.size(codes[j]);
+                    Integer position = current.get(names[j]);
+                    if (position != null && layout.codes[position] == codes[j]) {
+                        fields[j] = layout.fields[position];
+                        components[j] = position;
+                    } else {
+                        components[j] = -1;
+                    }
+                }
+            }
+            this.bytes = bytes;
+            this.fields = fields;
+            this.components = components;
+            this.instantiator = kind == SnapshotLayout.OBJECT ? Instantiator.of(type) : null;
+            this.collection = kind == SnapshotLayout.COLLECTION ? CollectionCopier.of(type) : null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Persistent deep copy: saves a graph into a file and restores it later, in another JVM for example.
+ * Unlike Java serialization classes don't need to be {@link java.io.Serializable}, objects are saved
+ * field by field like {@link CopyUtils#deepCopy(Object)} copies them (see {@link CopyPlan}, {@link RecordPlan},
+ * {@link CollectionCopier}) and restored with cached {@link Instantiator}s, no constructors are called.
+ * Shared and cyclic references are restored as they were.
+ * <p>
+ * File is written and read through memory-mapped windows ({@link MappedOutput}, {@link MappedInput}),
+ * primitive arrays are moved by bulk operations. Format, all numbers in the byte order of the writer:
+ * <pre>
+ * header      byte order (0 - big endian, 1 - little endian), int magic, int version
+ * class table bytes: classes of the graph, kind of their objects and field layouts, see {@link SnapshotLayout}
+ * allocation  int count, for each object: int class id, then array length, number of collection elements
+ *             or encoded value (strings, boxed primitives, enum constants...)
+ * records     int count, for each record (components first): int index, fields
+ * content     for each object, array or collection: fields (primitive block, then reference indices),
+ *             elements of arrays (raw primitive block or reference indices), elements of collections
+ * </pre>
+ * References are indices of objects in the allocation section, {@code -1} for {@code null}. The root is the first
+ * object. Fields are matched by name when restored, so fields added to a class since the snapshot was saved keep
+ * default values and removed fields are skipped.
+ * <p>
+ * Hash based collections are saved as their elements and rebuilt when restored, after their keys are complete,
+ * so hash codes of mutable keys are computed again. A key which refers back to its collection can't be complete
+ * by then, such snapshot fails to load with {@link IllegalArgumentException}. A hash based collection with a load
+ * factor other than the default one and keys which aren't immutable can't be saved.
+ * <p>
+ * Limitations: objects of hidden classes (lambdas) can't be saved, sorted collections with a comparator and
+ * collections with a load factor other than the default one are saved field by field (this needs
+ * {@code --add-opens} like copy does), built-in immutable JDK values without special encoding
+ * (see {@link ImmutableTypes}) are saved with Java serialization.
+ */
+public final class SnapshotStore {
+
+    static final int MAGIC = 0x44435348;
+    static final int VERSION = 1;
+
+    private SnapshotStore() {
+    }
+
+    /**
+     * Saves the graph into the file, the file is overwritten.
+     * @param obj root of the graph
+     * @param file file to save to
+     */
+    public static void save(Object obj, Path file) throws IOException
+    {
+        new SnapshotWriter().save(obj, file);
+    }
+
+    /**
+     * Restores the graph saved by {@link #save(Object, Path)}. Classes are loaded by the context class loader.
+     * @param file file to restore from
+     * @param type expected class of the root
+     * @return copy of the saved graph
+     * @param <T> type of the root
+     */
+    public static <T> T load(Path file, Class<T> type) throws IOException
+    {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+            loader = SnapshotStore.class.getClassLoader();
+        return type.cast(new SnapshotReader(loader).load(file));
+    }
+}
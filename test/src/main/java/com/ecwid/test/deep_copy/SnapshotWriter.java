@@ -0,0 +1,360 @@
+package com.ecwid.test.deep_copy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes one graph into a snapshot file, see {@link SnapshotStore} for the format.
+ * <p>
+ * The graph is indexed breadth first like in {@link Stamper}, every object gets its index and its kind.
+ * Size of the file is known after indexing, so the file is mapped once per window and written sequentially.
+ */
+final class SnapshotWriter {
+
+    private final IdentityCopyMap indices = new IdentityCopyMap();
+    private final List<Object> objects = new ArrayList<>();
+
+    /**
+     * Elements of collections, encoded values, {@code null} for other objects.
+     */
+    private final List<Object> payloads = new ArrayList<>();
+    private int[] classIds = new int[16];
+
+    private final Map<ClassKey, Integer> classIndex = new HashMap<>();
+    private final List<ClassKey> classes = new ArrayList<>();
+
+    private int recordCount;
+
+    /**
+     * Size of allocation, record and content sections in bytes.
+     */
+    private long size;
+
+    private record ClassKey(Class<?> type, byte kind) {
+    }
+
+    void save(Object root, Path file) throws IOException {
+        of(root);
+        for (int k = 0; k < objects.size(); k++)
+            index(k);
+        byte[] classTable = classTable();
+        long total = 1 + 4 + 4 + 4 + classTable.length + 4 + 4 + size;
+        ByteOrder order = ByteOrder.nativeOrder();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedOutput out = new MappedOutput(channel, total, order);
+            ByteBuffer header = out.reserve(9);
+            header.put(order == ByteOrder.BIG_ENDIAN ? (byte) 0 : (byte) 1);
+            header.putInt(SnapshotStore.MAGIC);
+            header.putInt(SnapshotStore.VERSION);
+            out.putBytes(classTable);
+            out.reserve(4).putInt(objects.size());
+            for (int k = 0; k < objects.size(); k++)
+                writeAllocation(out, k);
+            writeRecords(out);
+            for (int k = 0; k < objects.size(); k++)
+                writeContent(out, k);
+            out.finish();
+        }
+    }
+
+    /**
+     * @return index of the object, it is added to the graph on first request; {@code -1} for {@code null}
+     */
+    private int of(Object obj) {
+        if (obj == null)
+            return -1;
+        Integer i = (Integer) indices.get(obj);
+        if (i == null) {
+            i = objects.size();
+            indices.put(obj, i);
+            objects.add(obj);
+            payloads.add(null);
+        }
+        return i;
+    }
+
+    /**
+     * Classifies the object, adds objects it refers to and counts its size.
+     */
+    private void index(int k) throws IOException {
+        Object obj = objects.get(k);
+        Class<?> type = obj.getClass();
+        if (type.isHidden())
+            throw new IllegalArgumentException("Can't save " + type + ", it has no name to be loaded by");
+        byte kind;
+        Object payload = null;
+        if (obj instanceof String s) {
+            kind = SnapshotLayout.STRING;
+            payload = s.getBytes(StandardCharsets.UTF_8);
+        } else if (isBoxed(type)) {
+            kind = SnapshotLayout.BOXED;
+        } else if (obj instanceof Enum<?> e) {
+            kind = SnapshotLayout.ENUM;
+            type = e.getDeclaringClass();
+            payload = e.name().getBytes(StandardCharsets.UTF_8);
+        } else if (obj instanceof Class<?> c) {
+            kind = SnapshotLayout.CLASS;
+            payload = c.getName().getBytes(StandardCharsets.UTF_8);
+        } else if (type == BigInteger.class || type == BigDecimal.class) {
+            kind = type == BigInteger.class ? SnapshotLayout.BIG_INTEGER : SnapshotLayout.BIG_DECIMAL;
+            payload = obj.toString().getBytes(StandardCharsets.UTF_8);
+        } else if (ImmutableTypes.isBuiltIn(type)) {
+            if (!(obj instanceof Serializable))
+                throw new IllegalArgumentException("Can't save " + type);
+            kind = SnapshotLayout.SERIALIZED;
+            payload = serialize(obj);
+        } else if (type.isArray()) {
+            kind = SnapshotLayout.ARRAY;
+        } else if (type.isRecord()) {
+            kind = SnapshotLayout.RECORD;
+        } else {
+            kind = SnapshotLayout.OBJECT;
+            CollectionCopier collection = CollectionCopier.of(type);
+            if (collection != null && collection.isPortable(obj)) {
+                payload = collection.portableElements(obj);
+                if (payload != null)
+                    kind = SnapshotLayout.COLLECTION;
+            } else if (collection != null && (obj instanceof HashMap<?, ?> || obj instanceof HashSet<?>)) {
+                Object[] elements = collection.portableElements(obj);
+                for (int j = 0; j < elements.length; j++) {
+                    if (collection.readsElement(elements[j], j))
+                        throw new IllegalArgumentException("Can't save " + type.getName() + " with load factor other"
+                                + " than the default one and key " + elements[j].getClass().getName()
+                                + ", its hash code may differ when loaded");
+                }
+            }
+        }
+        if (k == classIds.length)
+            classIds = Arrays.copyOf(classIds, k * 2);
+        classIds[k] = classId(type, kind);
+        payloads.set(k, payload);
+        size += 4 + references(obj, type, kind, payload);
+    }
+
+    private static boolean isBoxed(Class<?> type) {
+        return type == Integer.class || type == Long.class || type == Double.class || type == Float.class
+                || type == Boolean.class || type == Byte.class || type == Short.class || type == Character.class;
+    }
+
+    /**
+     * Adds objects the object refers to.
+     * @return size of the object in allocation, record and content sections without its class id
+     */
+    private long references(Object obj, Class<?> type, byte kind, Object payload) {
+        switch (kind) {
+            case SnapshotLayout.OBJECT, SnapshotLayout.RECORD -> {
+                SnapshotLayout layout = SnapshotLayout.of(type);
+                for (int k = 0; k < layout.fields.length; k++) {
+                    if (layout.codes[k] == SnapshotLayout.REFERENCE)
+                        of(layout.fields[k].get(obj));
+                }
+                if (kind == SnapshotLayout.RECORD) {
+                    recordCount++;
+                    return 4 + layout.bytes;
+                }
+                return layout.bytes;
+            }
+            case SnapshotLayout.ARRAY -> {
+                int length = Array.getLength(obj);
+                Class<?> componentType = type.componentType();
+                if (componentType.isPrimitive())
+                    return 4 + (long) length * SnapshotLayout.size(SnapshotLayout.code(componentType));
+                for (Object element : (Object[]) obj)
+                    of(element);
+                return 4 + 4L * length;
+            }
+            case SnapshotLayout.COLLECTION -> {
+                Object[] elements = (Object[]) payload;
+                for (Object element : elements)
+                    of(element);
+                return 4 + 4L * elements.length;
+            }
+            case SnapshotLayout.BOXED -> {
+                return SnapshotLayout.size(SnapshotLayout.boxedCode(type));
+            }
+            default -> {
+                return 4 + ((byte[]) payload).length;
+            }
+        }
+    }
+
+    private int classId(Class<?> type, byte kind) {
+        ClassKey key = new ClassKey(type, kind);
+        Integer id = classIndex.get(key);
+        if (id == null) {
+            id = classes.size();
+            classIndex.put(key, id);
+            classes.add(key);
+        }
+        return id;
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return class table, it is small and written with {@link DataOutputStream}
+     */
+    private byte[] classTable() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(classes.size());
+        for (ClassKey key : classes) {
+            out.writeUTF(key.type().getName());
+            out.writeByte(key.kind());
+            if (key.kind() == SnapshotLayout.OBJECT || key.kind() == SnapshotLayout.RECORD) {
+                SnapshotLayout layout = SnapshotLayout.of(key.type());
+                out.writeInt(layout.fields.length);
+                for (int k = 0; k < layout.fields.length; k++) {
+                    out.writeUTF(layout.fields[k].toString());
+                    out.writeByte(layout.codes[k]);
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeAllocation(MappedOutput out, int k) throws IOException {
+        Object obj = objects.get(k);
+        out.reserve(4).putInt(classIds[k]);
+        ClassKey key = classes.get(classIds[k]);
+        switch (key.kind()) {
+            case SnapshotLayout.OBJECT, SnapshotLayout.RECORD -> {
+            }
+            case SnapshotLayout.ARRAY -> out.reserve(4).putInt(Array.getLength(obj));
+            case SnapshotLayout.COLLECTION -> out.reserve(4).putInt(((Object[]) payloads.get(k)).length);
+            case SnapshotLayout.BOXED -> {
+                byte code = SnapshotLayout.boxedCode(key.type());
+                SnapshotLayout.put(out.reserve(SnapshotLayout.size(code)), code, obj);
+            }
+            default -> out.putBytes((byte[]) payloads.get(k));
+        }
+    }
+
+    /**
+     * Writes records so that each record goes after the records among its components.
+     */
+    private void writeRecords(MappedOutput out) throws IOException {
+        out.reserve(4).putInt(recordCount);
+        if (recordCount == 0)
+            return;
+        boolean[] visited = new boolean[objects.size()];
+        int[] stack = new int[recordCount];
+        int[][] refs = new int[recordCount][];
+        int[] positions = new int[recordCount];
+        for (int k = 0; k < objects.size(); k++) {
+            if (!isRecord(k) || visited[k])
+                continue;
+            visited[k] = true;
+            stack[0] = k;
+            refs[0] = null;
+            int depth = 1;
+            while (depth > 0) {
+                int i = stack[depth - 1];
+                if (refs[depth - 1] == null) {
+                    refs[depth - 1] = componentRecords(i);
+                    positions[depth - 1] = 0;
+                }
+                if (positions[depth - 1] < refs[depth - 1].length) {
+                    int ref = refs[depth - 1][positions[depth - 1]++];
+                    if (!visited[ref]) {
+                        visited[ref] = true;
+                        stack[depth] = ref;
+                        refs[depth] = null;
+                        depth++;
+                    }
+                } else {
+                    depth--;
+                    SnapshotLayout layout = SnapshotLayout.of(classes.get(classIds[i]).type());
+                    ByteBuffer buffer = out.reserve(4 + layout.bytes);
+                    buffer.putInt(i);
+                    putFields(buffer, objects.get(i), layout);
+                    refs[depth] = null;
+                }
+            }
+        }
+    }
+
+    private boolean isRecord(int k) {
+        return classes.get(classIds[k]).kind() == SnapshotLayout.RECORD;
+    }
+
+    /**
+     * @return indices of records among components of the record
+     */
+    private int[] componentRecords(int k) {
+        SnapshotLayout layout = SnapshotLayout.of(classes.get(classIds[k]).type());
+        Object record = objects.get(k);
+        int[] refs = new int[layout.fields.length];
+        int count = 0;
+        for (int j = 0; j < layout.fields.length; j++) {
+            if (layout.codes[j] == SnapshotLayout.REFERENCE) {
+                int ref = of(layout.fields[j].get(record));
+                if (ref >= 0 && isRecord(ref))
+                    refs[count++] = ref;
+            }
+        }
+        return Arrays.copyOf(refs, count);
+    }
+
+    private void writeContent(MappedOutput out, int k) throws IOException {
+        Object obj = objects.get(k);
+        switch (classes.get(classIds[k]).kind()) {
+            case SnapshotLayout.OBJECT -> {
+                SnapshotLayout layout = SnapshotLayout.of(obj.getClass());
+                putFields(out.reserve(layout.bytes), obj, layout);
+            }
+            case SnapshotLayout.ARRAY -> {
+                Class<?> componentType = obj.getClass().componentType();
+                if (componentType.isPrimitive()) {
+                    int elementSize = SnapshotLayout.size(SnapshotLayout.code(componentType));
+                    out.putArray(obj, Array.getLength(obj), elementSize);
+                } else {
+                    for (Object element : (Object[]) obj)
+                        out.reserve(4).putInt(of(element));
+                }
+            }
+            case SnapshotLayout.COLLECTION -> {
+                for (Object element : (Object[]) payloads.get(k))
+                    out.reserve(4).putInt(of(element));
+            }
+            default -> {
+                // written in allocation or record section
+            }
+        }
+    }
+
+    private void putFields(ByteBuffer buffer, Object obj, SnapshotLayout layout) {
+        for (int j = 0; j < layout.fields.length; j++) {
+            if (layout.codes[j] == SnapshotLayout.REFERENCE)
+                buffer.putInt(of(layout.fields[j].get(obj)));
+            else
+                layout.fields[j].write(obj, buffer);
+        }
+    }
+}
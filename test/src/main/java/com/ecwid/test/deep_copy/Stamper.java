@@ -0,0 +1,435 @@
+package com.ecwid.test.deep_copy;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Factory of deep copies of one prototype.
+ * <p>
+ * Prototype is copied once into a private template, and the template graph is compiled into a copy program:
+ * a flat list of nodes, one per mutable object, where references between objects are indices of nodes.
+ * Each {@link #stamp()} replays the program: allocates an instance for every node, then completes the nodes
+ * in {@link AssemblyOrder} resolving references by index: objects are filled, records are created by their
+ * canonical constructors once their components are complete, like {@link CopyUtils#deepCopy(Object)} creates them.
+ * Shared and cyclic references of the prototype are already known, so no identity map is used and nothing
+ * is looked up by the original object.
+ * <p>
+ * Graphs with objects copied by a {@link CopyHandler} can't be stamped, the program has no way to replay
+ * a handler. Prototype can be changed after the stamper is created, it doesn't affect stamped copies.
+ * Stamper is thread safe.
+ * @param <T> type of the prototype
+ */
+public final class Stamper<T> implements Supplier<T> {
+
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int[] NO_REFS = new int[0];
+
+    /**
+     * Returned as is, if the prototype is {@code null} or immutable.
+     */
+    private final T prototype;
+
+    /**
+     * Program of the copy, the root is the first node. Empty if the prototype doesn't need to be copied.
+     */
+    private final Node[] nodes;
+
+    /**
+     * Indices of nodes in the order they are completed, see {@link AssemblyOrder}.
+     */
+    private final int[] order;
+
+    /**
+     * Indices of nodes filled again after all nodes are complete.
+     */
+    private final int[] late;
+
+    /**
+     * @param prototype object to copy
+     * @throws IllegalArgumentException if the graph has objects copied by a {@link CopyHandler}
+     */
+    public Stamper(T prototype) {
+        this.prototype = prototype;
+        if (prototype == null || ImmutableTypes.isImmutable(prototype.getClass()))
+            this.nodes = NO_NODES;
+        else
+            this.nodes = compile(CopyUtils.deepCopy(prototype));
+        int[][] refs = new int[nodes.length][];
+        for (int k = 0; k < nodes.length; k++)
+            refs[k] = nodes[k].refs();
+        this.order = AssemblyOrder.of(refs);
+        this.late = lateNodes(nodes, order);
+    }
+
+    /**
+     * @return new deep copy of the prototype
+     */
+    public T stamp() {
+        if (nodes.length == 0)
+            return prototype;
+        Node[] nodes = this.nodes;
+        Object[] instances = new Object[nodes.length];
+        for (int k = 0; k < nodes.length; k++)
+            instances[k] = nodes[k].allocate();
+        for (int k : order) {
+            if (nodes[k] instanceof RecordNode record)
+                instances[k] = record.create(instances);
+            else
+                nodes[k].fill(instances[k], instances);
+        }
+        for (int k : late)
+            nodes[k].fill(instances[k], instances);
+        @SuppressWarnings("unchecked") T r = (T) instances[0];
+        return r;
+    }
+
+    /**
+     * @param n number of copies
+     * @return {@code n} independent deep copies of the prototype
+     */
+    public List<T> stamp(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("Negative number of copies " + n);
+        List<T> copies = new ArrayList<>(n);
+        for (int k = 0; k < n; k++)
+            copies.add(stamp());
+        return copies;
+    }
+
+    /**
+     * Same as {@link #stamp()}.
+     */
+    @Override
+    public T get() {
+        return stamp();
+    }
+
+    /**
+     * @return infinite stream of copies, each one is stamped when it is consumed
+     */
+    public Stream<T> stream() {
+        return Stream.generate(this);
+    }
+
+    /**
+     * @return number of objects allocated for each copy
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Indexes the graph breadth first and builds node of each object.
+     * @param template private copy of the prototype, it is never changed
+     */
+    private static Node[] compile(Object template) {
+        Index index = new Index();
+        index.of(template);
+        List<Node> nodes = new ArrayList<>();
+        for (int k = 0; k < index.objects.size(); k++)
+            nodes.add(node(index.objects.get(k), index));
+        return nodes.toArray(NO_NODES);
+    }
+
+    /**
+     * @return nodes which refer to records created after them, they are filled again when all records exist
+     * @throws IllegalArgumentException if a record or a collection refers to such record
+     */
+    private static int[] lateNodes(Node[] nodes, int[] order) {
+        int[][] refs = new int[nodes.length][];
+        boolean[] records = new boolean[nodes.length];
+        for (int k = 0; k < nodes.length; k++) {
+            refs[k] = nodes[k].refs();
+            records[k] = nodes[k] instanceof RecordNode;
+        }
+        int[] late = AssemblyOrder.late(order, refs, records);
+        for (int k : late) {
+            if (nodes[k] instanceof RecordNode || nodes[k] instanceof CollectionNode)
+                throw new IllegalArgumentException("Can't stamp cyclic reference to record from " + nodes[k]
+                        + ", record is created only after its components");
+        }
+        return late;
+    }
+
+    private static Node node(Object obj, Index index) {
+        Class<?> type = obj.getClass();
+        CopyHandler<Object> handler = CopyHandlers.of(type);
+        if (handler != null)
+            throw new IllegalArgumentException("Can't stamp " + type.getName() + ", it is copied by handler " + handler);
+        if (obj instanceof Record)
+            return new RecordNode(obj, index);
+        if (type.isArray()) {
+            Class<?> componentType = type.componentType();
+            if (componentType.isPrimitive() || ImmutableTypes.isImmutableFieldType(componentType))
+                return new CloneNode(obj, componentType);
+            return new ArrayNode((Object[]) obj, index);
+        }
+        CollectionCopier collection = CollectionCopier.of(type);
+        if (collection != null) {
+            Object[] elements = collection.elements(obj);
+            if (elements != null)
+                return new CollectionNode(obj, collection, elements, index);
+        }
+        return new ObjectNode(obj, index);
+    }
+
+    /**
+     * Objects of the template and their indices.
+     */
+    private static final class Index {
+
+        final IdentityCopyMap indices = new IdentityCopyMap();
+        final List<Object> objects = new ArrayList<>();
+
+        /**
+         * @param value value of a field or an element
+         * @return index of the node of the value, {@code -1} if the value is shared by copies as is
+         */
+        int of(Object value) {
+            if (value == null || ImmutableTypes.isImmutable(value.getClass()))
+                return -1;
+            Integer i = (Integer) indices.get(value);
+            if (i == null) {
+                i = objects.size();
+                indices.put(value, i);
+                objects.add(value);
+            }
+            return i;
+        }
+
+        /**
+         * @param values values of fields or elements
+         * @return references to the values, see {@link #of(Object)}
+         */
+        int[] of(Object[] values) {
+            int[] refs = new int[values.length];
+            for (int k = 0; k < values.length; k++)
+                refs[k] = of(values[k]);
+            return refs;
+        }
+    }
+
+    /**
+     * Instructions to copy one object of the template.
+     */
+    private abstract static class Node {
+
+        /**
+         * @return new instance, its references are not set yet
+         */
+        abstract Object allocate();
+
+        /**
+         * @param instance instance created by {@link #allocate()}
+         * @param instances instances of all nodes of the copy
+         */
+        abstract void fill(Object instance, Object[] instances);
+
+        /**
+         * @return indices of nodes the node refers to, {@code -1} for values shared as is
+         */
+        abstract int[] refs();
+
+        /**
+         * @return instance the reference points to or the shared value itself
+         */
+        static Object resolve(int ref, Object value, Object[] instances) {
+            return ref >= 0 ? instances[ref] : value;
+        }
+    }
+
+    private static final class ObjectNode extends Node {
+
+        private final Object template;
+        private final CopyPlan plan;
+        private final Instantiator instantiator;
+        private final Object[] values;
+        private final int[] refs;
+
+        ObjectNode(Object template, Index index) {
+            this.template = template;
+            this.plan = CopyPlan.of(template.getClass());
+            this.instantiator = Instantiator.of(template.getClass());
+            FieldAccessor[] objectFields = plan.objectFields;
+            FieldAccessor[] arrayFields = plan.arrayFields;
+            this.values = new Object[objectFields.length + arrayFields.length];
+            for (int k = 0; k < objectFields.length; k++)
+                values[k] = objectFields[k].get(template);
+            for (int k = 0; k < arrayFields.length; k++)
+                values[objectFields.length + k] = arrayFields[k].get(template);
+            this.refs = index.of(values);
+        }
+
+        @Override
+        Object allocate() {
+            return instantiator.newInstance(template);
+        }
+
+        @Override
+        void fill(Object instance, Object[] instances) {
+            plan.copyFlatFields(template, instance);
+            FieldAccessor[] objectFields = plan.objectFields;
+            FieldAccessor[] arrayFields = plan.arrayFields;
+            for (int k = 0; k < objectFields.length; k++)
+                objectFields[k].set(instance, resolve(refs[k], values[k], instances));
+            int offset = objectFields.length;
+            for (int k = 0; k < arrayFields.length; k++)
+                arrayFields[k].set(instance, resolve(refs[offset + k], values[offset + k], instances));
+        }
+
+        @Override
+        int[] refs() {
+            return refs;
+        }
+    }
+
+    /**
+     * Record, it is created by {@link #create(Object[])} when its components are complete.
+     */
+    private static final class RecordNode extends Node {
+
+        private final Class<?> type;
+        private final RecordPlan plan;
+        private final Object[] values;
+        private final int[] refs;
+
+        RecordNode(Object template, Index index) {
+            this.type = template.getClass();
+            this.plan = RecordPlan.of(type);
+            this.values = plan.components(template);
+            this.refs = index.of(values);
+        }
+
+        @Override
+        Object allocate() {
+            return null;
+        }
+
+        /**
+         * @param instances instances of all nodes, components are already complete
+         * @return new record
+         */
+        Object create(Object[] instances) {
+            Object[] components = new Object[values.length];
+            for (int k = 0; k < components.length; k++)
+                components[k] = resolve(refs[k], values[k], instances);
+            return plan.newInstance(components);
+        }
+
+        @Override
+        void fill(Object instance, Object[] instances) {
+        }
+
+        @Override
+        int[] refs() {
+            return refs;
+        }
+
+        @Override
+        public String toString() {
+            return type.getName();
+        }
+    }
+
+    /**
+     * Array of primitives or immutable elements.
+     */
+    private static final class CloneNode extends Node {
+
+        private final Object template;
+        private final Class<?> componentType;
+
+        CloneNode(Object template, Class<?> componentType) {
+            this.template = template;
+            this.componentType = componentType;
+        }
+
+        @Override
+        Object allocate() {
+            if (componentType.isPrimitive())
+                return CopyUtils.copyPrimitiveArray(template, componentType);
+            return ((Object[]) template).clone();
+        }
+
+        @Override
+        void fill(Object instance, Object[] instances) {
+        }
+
+        @Override
+        int[] refs() {
+            return NO_REFS;
+        }
+    }
+
+    private static final class ArrayNode extends Node {
+
+        private final Object[] template;
+        private final int[] refs;
+
+        ArrayNode(Object[] template, Index index) {
+            this.template = template;
+            this.refs = index.of(template);
+        }
+
+        @Override
+        Object allocate() {
+            return Array.newInstance(template.getClass().componentType(), template.length);
+        }
+
+        @Override
+        void fill(Object instance, Object[] instances) {
+            Object[] array = (Object[]) instance;
+            for (int k = 0; k < array.length; k++)
+                array[k] = resolve(refs[k], template[k], instances);
+        }
+
+        @Override
+        int[] refs() {
+            return refs;
+        }
+    }
+
+    /**
+     * Collection rebuilt by {@link CollectionCopier}.
+     */
+    private static final class CollectionNode extends Node {
+
+        private final Object template;
+        private final CollectionCopier collection;
+        private final Object[] elements;
+        private final int[] refs;
+
+        CollectionNode(Object template, CollectionCopier collection, Object[] elements, Index index) {
+            this.template = template;
+            this.collection = collection;
+            this.elements = elements;
+            this.refs = index.of(elements);
+        }
+
+        @Override
+        Object allocate() {
+            return collection.newInstance(template, elements.length);
+        }
+
+        @Override
+        void fill(Object instance, Object[] instances) {
+            Object[] copies = new Object[elements.length];
+            for (int k = 0; k < copies.length; k++)
+                copies[k] = resolve(refs[k], elements[k], instances);
+            collection.fill(instance, copies);
+        }
+
+        @Override
+        int[] refs() {
+            return refs;
+        }
+
+        @Override
+        public String toString() {
+            return template.getClass().getName();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.ecwid.test.deep_copy;
+
+/**
+ * Object which can be copied while other threads modify it, without blocking them. Copy reads the fields
+ * optimistically and validates the read:
+ * <pre>
+ * stamp = obj.stamp()
+ * read fields of obj
+ * if stamp != 0 and obj.validate(stamp): fields are consistent
+ * else: retry
+ * </pre>
+ * Methods map directly to {@link java.util.concurrent.locks.StampedLock}:
+ * <pre>
+ * public long stamp() {
+ *     return lock.tryOptimisticRead();
+ * }
+ *
+ * public boolean validate(long stamp) {
+ *     return lock.validate(stamp);
+ * }
+ * </pre>
+ * or to a sequence counter which writers make odd while they write and even when they are done
+ * ({@code stamp()} returns {@code 0} for an odd counter, {@code validate} compares the counter with the stamp).
+ * The lock is not copied with its state: copy gets a new unlocked {@code StampedLock}, see {@link CopyHandlers}.
+ * A counter is copied as read, which is even after a valid read.
+ * Copy issues an acquire fence before {@code validate}, so a {@code volatile} counter is enough.
+ * <p>
+ * Stamp covers fields of the object itself: primitive and immutable values and references. Objects and arrays
+ * it refers to are copied as they are, unless they are version stamped too, so writers should replace arrays rather
+ * than modify them in place. After {@value CopyEngine#STABLE_READ_ATTEMPTS} failed attempts copy is aborted with
+ * {@link java.util.ConcurrentModificationException}.
+ */
+public interface VersionStamped {
+
+    /**
+     * @return stamp of the current version, {@code 0} if the object is being modified
+     */
+    long stamp();
+
+    /**
+     * @param stamp stamp returned by {@link #stamp()}
+     * @return {@code true} if the object hasn't been modified since the stamp was taken
+     */
+    boolean validate(long stamp);
+}
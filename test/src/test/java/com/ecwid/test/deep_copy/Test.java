@@ -1,6 +1,14 @@
 package com.ecwid.test.deep_copy;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
 public class Test {
 
@@ -17,6 +25,17 @@ public class Test {
     public static void main(String[] args)
     {
         testInherited();
+        testCompiledCopiers();
+        testRecords();
+        testStamper();
+        testParallelRecords();
+        testSnapshot();
+        testBudget();
+        testMetrics();
+        testAnalyze();
+        testContext();
+        testHandlers();
+        testConcurrentSnapshots();
         testFancyTypes();
     }
 
@@ -61,13 +80,268 @@ public class Test {
         ScheduledExecutorService exec = Executors.newScheduledThreadPool(2);
 // we cannot copy running structure
 //        exec.schedule(()->System.out.println("At last!"), 5, TimeUnit.SECONDS);
-        ScheduledExecutorService eCopy = CopyUtils.deepCopy(exec);
+        // thread factory refers to the thread group, which is not supposed to be copied
+        CopyOptions options = CopyOptions.builder()
+                .share(ThreadFactory.class, RejectedExecutionHandler.class)
+                .build();
+        ScheduledExecutorService eCopy = CopyUtils.deepCopy(exec, options);
         exec.shutdownNow();
         eCopy.schedule(()->System.out.println("At last!"), 10, TimeUnit.MILLISECONDS);
         Thread.sleep(20);
         eCopy.shutdownNow();
     }
 
+    private static void testCompiledCopiers() {
+
+        B b = new B(7, 11);
+        CopyUtils.setCompiledCopiers(true);
+        B bCopy;
+        try {
+            for (int k = 0; k < 2 * CopyPlan.COMPILE_THRESHOLD; k++)
+                CopyUtils.deepCopy(new B(k, 11));
+            bCopy = CopyUtils.deepCopy(b);
+        } finally {
+            CopyUtils.setCompiledCopiers(false);
+        }
+        if (!CopyUtils.isCompiled(B.class))
+            throw new AssertionError("Copier of " + B.class + " is not compiled");
+        B reflective = CopyUtils.deepCopy(b);
+        if (!bCopy.toString().equals(reflective.toString()) || bCopy.getConst() != reflective.getConst())
+            throw new AssertionError(bCopy + " differs from reflective copy " + reflective);
+        System.out.println(bCopy);
+    }
+
+    record Pair(B first, B second) {
+    }
+
+    private static void testRecords() {
+
+        B b = new B(1, 11);
+        Pair pair = new Pair(b, b);
+        Pair pairCopy = CopyUtils.deepCopy(pair);
+        System.out.println(pairCopy);
+        System.out.println(pairCopy.first() != b && pairCopy.first() == pairCopy.second());
+    }
+
+    record Batch(List<B> items, int count) {
+        Batch {
+            if (items.size() != count)
+                throw new IllegalArgumentException(items.size() + " items, expected " + count);
+        }
+    }
+
+    private static void testStamper() {
+
+        Batch batch = new Batch(new ArrayList<>(List.of(new B(1, 11), new B(2, 22))), 2);
+        List<Batch> copies = CopyUtils.stamper(batch).stamp(2);
+        System.out.println(copies.get(0));
+        System.out.println(copies.get(0).items() != copies.get(1).items());
+    }
+
+    private static void testParallelRecords() {
+
+        List<List<B>> groups = new ArrayList<>();
+        for (int k = 0; k < 200; k++) {
+            List<B> items = new ArrayList<>();
+            for (int j = 0; j <= k; j++)
+                items.add(new B(j, 11));
+            groups.add(items);
+        }
+        Batch[] batches = new Batch[20_000];
+        for (int k = 0; k < batches.length; k++) {
+            List<B> items = groups.get(k % groups.size());
+            batches[k] = new Batch(items, items.size());
+        }
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            boolean shared = true;
+            for (int k = 0; k < 10; k++) {
+                Batch[] copies = CopyUtils.deepCopyParallel(batches, pool);
+                shared &= copies[7].items() == copies[207].items() && copies[7].items() != batches[7].items();
+            }
+            System.out.println(shared);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void testSnapshot() {
+
+        B b = new B(1, 11);
+        Pair pair = new Pair(b, b);
+        try {
+            Path file = Files.createTempFile("snapshot", ".bin");
+            try {
+                SnapshotStore.save(pair, file);
+                Pair restored = SnapshotStore.load(file, Pair.class);
+                System.out.println(restored);
+                System.out.println(restored.first() != b && restored.first() == restored.second());
+                SnapshotStore.save(new Batch(new ArrayList<>(List.of(b, b)), 2), file);
+                System.out.println(SnapshotStore.load(file, Batch.class));
+                HashSet<List<B>> groups = new HashSet<>();
+                groups.add(new ArrayList<>(List.of(b)));
+                SnapshotStore.save(groups, file);
+                HashSet<?> restoredGroups = SnapshotStore.load(file, HashSet.class);
+                System.out.println(restoredGroups.contains(restoredGroups.iterator().next()));
+            } finally {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void testBudget() {
+
+        List<B> registry = new ArrayList<>();
+        for (int k = 0; k < 10_000; k++)
+            registry.add(new B(k, 11));
+        Pair pair = new Pair(registry.get(0), registry.get(1));
+        CopyOptions options = CopyOptions.builder().maxObjects(100).build();
+        System.out.println(CopyUtils.deepCopy(pair, options));
+        try {
+            CopyUtils.deepCopy(List.of(pair, registry), options);
+        } catch (CopyBudgetExceededException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static void testMetrics() {
+
+        B b = new B(1, 11);
+        List<CopyStats> reported = new ArrayList<>();
+        Consumer<CopyStats> listener = reported::add;
+        CopyMetrics.addListener(listener);
+        try {
+            CopyUtils.deepCopy(new Pair(b, b));
+        } finally {
+            CopyMetrics.removeListener(listener);
+        }
+        CopyStats stats = reported.get(0);
+        System.out.println(stats.objects() + " objects, " + stats.identityHits() + " identity hits, "
+                + stats.classes() + ", " + stats.strategies());
+    }
+
+    private static void testAnalyze() {
+
+        B b = new B(1, 11);
+        GraphAnalysis analysis = CopyUtils.analyze(List.of(new Pair(b, b), new Pair(b, new B(2, 22))));
+        System.out.println(analysis.objects() + " objects, " + analysis.sharedReferences() + " shared references, "
+                + analysis.classes().keySet());
+        CopyOptions options = CopyOptions.builder().presize(analysis).build();
+        System.out.println(CopyUtils.deepCopy(new Pair(b, b), options));
+    }
+
+    private static void testContext() {
+
+        List<B> large = new ArrayList<>();
+        for (int k = 0; k < 10_000; k++)
+            large.add(new B(k, 11));
+        try (CopyContext context = CopyContext.acquire()) {
+            System.out.println(context.deepCopy(large).size());
+            B b = new B(1, 11);
+            System.out.println(context.deepCopy(new Pair(b, b))); // context has shrunk after the large copy
+        }
+    }
+
+    static class ExecutorHandler implements CopyHandler<ScheduledThreadPoolExecutor> {
+
+        @Override
+        public Class<ScheduledThreadPoolExecutor> type() {
+            return ScheduledThreadPoolExecutor.class;
+        }
+
+        @Override
+        public ScheduledThreadPoolExecutor copy(ScheduledThreadPoolExecutor original, Copier copier) {
+            // running threads can't be copied, a new pool of the same size is created instead
+            return new ScheduledThreadPoolExecutor(original.getCorePoolSize(), original.getThreadFactory());
+        }
+    }
+
+    static class PairHandler implements CopyHandler<Pair> {
+
+        @Override
+        public Class<Pair> type() {
+            return Pair.class;
+        }
+
+        @Override
+        public Pair copy(Pair original, Copier copier) {
+            return new Pair(copier.copy(original.first()), copier.copy(original.second()));
+        }
+    }
+
+    private static void testHandlers() {
+
+        CopyHandlers.register(new ExecutorHandler(), new PairHandler());
+        try {
+            ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(2);
+            B b = new B(1, 11);
+            List<Object> graph = List.of(exec, new Pair(b, b));
+            List<Object> copy = CopyUtils.deepCopy(graph);
+            System.out.println(CopyUtils.analyze(graph).classes().keySet()); // executor internals are not walked
+            exec.shutdownNow();
+            ScheduledThreadPoolExecutor eCopy = (ScheduledThreadPoolExecutor) copy.get(0);
+            Pair pairCopy = (Pair) copy.get(1);
+            System.out.println(eCopy.getCorePoolSize() + " " + eCopy.isShutdown());
+            System.out.println(pairCopy.first() != b && pairCopy.first() == pairCopy.second());
+            eCopy.shutdownNow();
+        } finally {
+            CopyHandlers.unregister(ScheduledThreadPoolExecutor.class);
+            CopyHandlers.unregister(Pair.class);
+        }
+    }
+
+    static class Interval implements VersionStamped {
+        private final StampedLock lock = new StampedLock();
+        private int from;
+        private int to;
+
+        void set(int from, int to) {
+            long stamp = lock.writeLock();
+            try {
+                this.from = from;
+                this.to = to;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public long stamp() {
+            return lock.tryOptimisticRead();
+        }
+
+        @Override
+        public boolean validate(long stamp) {
+            return lock.validate(stamp);
+        }
+    }
+
+    private static void testConcurrentSnapshots() {
+
+        Interval interval = new Interval();
+        ConcurrentHashMap<List<Integer>, Integer> map = new ConcurrentHashMap<>();
+        List<Object> graph = List.of(interval, map, new ConcurrentLinkedDeque<Integer>(), new CopyOnWriteArrayList<Integer>());
+        Thread writer = new Thread(() -> {
+            for (int k = 0; !Thread.currentThread().isInterrupted(); k++) {
+                interval.set(k, k + 1);
+                map.put(List.of(k % 100), k);
+            }
+        });
+        writer.start();
+        CopyOptions options = CopyOptions.builder().concurrentSnapshots().build();
+        boolean consistent = true;
+        for (int k = 0; k < 1000; k++) {
+            Interval copy = (Interval) CopyUtils.deepCopy(graph, options).get(0);
+            consistent &= copy.to == copy.from + 1 || copy.to == 0;
+            if (copy.lock == interval.lock || copy.lock.isWriteLocked() || copy.lock.isReadLocked())
+                throw new AssertionError("Lock of the copy is not a new unlocked lock");
+        }
+        writer.interrupt();
+        System.out.println(consistent);
+    }
+
     private static void testInherited() {
 
         B b = new B(1, 11);